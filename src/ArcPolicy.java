@@ -0,0 +1,89 @@
+import java.util.*;
+
+/**
+ * Adaptive Replacement Cache (Megiddo and Modha).  Pages used once since
+ * they were loaded sit in T1 and pages used again in T2, both in LRU
+ * order.  The blocks last evicted from each are remembered, without their
+ * data, in the ghost lists B1 and B2: a miss on a B1 block means T1 was
+ * too small, one on a B2 block that T2 was, and the target size p of T1
+ * moves toward whichever would have hit.  A scan only passes through T1,
+ * so the blocks used again and again in T2 survive it.
+ */
+public class ArcPolicy implements ReplacementPolicy {
+    private int frames;
+    private int p;                         // target size of T1
+    private LinkedHashSet<Integer> free, t1, t2;  // pages, LRU first
+    private LinkedHashSet<Integer> b1, b2;        // blockIds, LRU first
+
+    public ArcPolicy( int frames ) {
+	this( 0, frames );
+    }
+
+    // Replace pages firstPage .. firstPage + frames - 1
+    public ArcPolicy( int firstPage, int frames ) {
+	this.frames = frames;
+	p = 0;
+	free = new LinkedHashSet<Integer>( );
+	t1 = new LinkedHashSet<Integer>( );
+	t2 = new LinkedHashSet<Integer>( );
+	b1 = new LinkedHashSet<Integer>( );
+	b2 = new LinkedHashSet<Integer>( );
+	for ( int i = firstPage; i < firstPage + frames; i++ )
+	    free.add( i );
+    }
+
+    public synchronized void touch( int entry ) {
+	if ( t1.remove( entry ) || t2.remove( entry ) )
+	    t2.add( entry ); // to the MRU end of T2
+    }
+
+    public synchronized void insert( int entry, int blockId ) {
+	free.remove( entry );
+	if ( b1.contains( blockId ) ) {
+	    p = Math.min( frames, p + Math.max( 1, b2.size( ) / b1.size( ) ) );
+	    b1.remove( blockId );
+	    t2.add( entry );
+	} else if ( b2.contains( blockId ) ) {
+	    p = Math.max( 0, p - Math.max( 1, b1.size( ) / b2.size( ) ) );
+	    b2.remove( blockId );
+	    t2.add( entry );
+	} else
+	    t1.add( entry );
+	trimGhosts( );
+    }
+
+    public synchronized void remove( int entry, int blockId ) {
+	if ( t1.remove( entry ) )
+	    b1.add( blockId );
+	else if ( t2.remove( entry ) )
+	    b2.add( blockId );
+	free.add( entry );
+	trimGhosts( );
+    }
+
+    // T1 and B1 hold at most frames blocks, all four lists twice that
+    private void trimGhosts( ) {
+	while ( t1.size( ) + b1.size( ) > frames && b1.isEmpty( ) == false )
+	    b1.remove( b1.iterator( ).next( ) );
+	while ( t1.size( ) + t2.size( ) + b1.size( ) + b2.size( ) > 2 * frames ) {
+	    LinkedHashSet<Integer> ghosts = b2.isEmpty( ) ? b1 : b2;
+	    if ( ghosts.isEmpty( ) )
+		break;
+	    ghosts.remove( ghosts.iterator( ).next( ) );
+	}
+    }
+
+    public synchronized int victim( Cache cache, int blockId ) {
+	int entry = cache.claimFirst( free.iterator( ) );
+	if ( entry != -1 )
+	    return entry;
+	// evict from T1 while it is over its target
+	boolean fromT1 = t1.isEmpty( ) == false
+	    && ( t1.size( ) > p
+		 || ( t1.size( ) == p && b2.contains( blockId ) ) );
+	entry = cache.claimFirst( ( fromT1 ? t1 : t2 ).iterator( ) );
+	if ( entry == -1 )
+	    entry = cache.claimFirst( ( fromT1 ? t2 : t1 ).iterator( ) );
+	return entry;
+    }
+}
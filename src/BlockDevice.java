@@ -0,0 +1,46 @@
+/**
+ * What the kernel needs from a block device: queue block transfers and
+ * syncs, and tell when a queued request has been serviced.  Request
+ * methods return null while the device cannot take another request.
+ */
+public interface BlockDevice {
+    DiskRequest read( int blockId, byte buffer[] );
+
+    DiskRequest write( int blockId, byte buffer[] );
+
+    DiskRequest sync( );
+
+    // Hint that a block's contents are no longer needed; it may read back
+    // as zeros or as its old data afterwards
+    DiskRequest discard( int blockId );
+
+    // Freeze the blocks under a name, or go back to how they were when a
+    // name was given; only a device on "cow" images can do either
+    DiskRequest snapshot( String name );
+
+    DiskRequest rollback( String name );
+
+    // names of the snapshots, oldest first, or null if there can be none
+    String[] snapshots( );
+
+    // Queue a batch of block transfers as a whole, returning one request
+    // that is ready once every block in it has been transferred
+    DiskRequest readv( int blockIds[], byte buffers[][] );
+
+    DiskRequest writev( int blockIds[], byte buffers[][] );
+
+    // The same, with block blockIds[i] taken from buffers[i] at offsets[i],
+    // so the blocks of a large buffer go out without being cut up first
+    DiskRequest writev( int blockIds[], byte buffers[][], int offsets[] );
+
+    boolean testReady( DiskRequest request );
+
+    // true if no request is queued or being serviced
+    boolean isIdle( );
+
+    // number of blocks addressable through this device
+    int getDiskSize( );
+
+    // start the threads servicing this device
+    void start( );
+}
@@ -0,0 +1,686 @@
+import java.util.Arrays;
+
+/*
+ The file system's view of the disk. A file system block is a run of one or more consecutive
+ disk blocks, its size is chosen when the disk is formatted and kept in the SuperBlock.
+ Every block the file system reads or writes, other than the superblock itself, goes through here.
+ Metadata blocks are written with log, which hands them to the Journal of the volume if it has one,
+ and reads see the journal's image of a block until it has been checkpointed.
+
+ When the kernel hands it the block Cache, blocks are read and written through the cache, which
+ keeps writes until it evicts them or is flushed. The journal hears of the newly allocated file data
+ blocks written into the cache, so a commit flushes only those. The journal's own records skip the cache with
+ readDirect and writeDirect, they are written once and only read back at mount. Inode and
+ indirect blocks go through readMetadata and writeMetadata into the cache's metadata pages, and
+ pin keeps the blocks of open files there, so streaming file data cannot push them out.
+ prefetch reads blocks into the cache ahead of a sequential reader without waiting for the disk
+ */
+
+public class BlockIO
+{
+    // Largest file system block that format accepts
+    public final static int maxBlockSize = 65536;
+
+    private static int blockSize = Disk.blockSize;
+    private static int sectorsPerBlock = 1;
+    private static Journal journal = null;
+    private static Cache cache = null;
+    // Most reads prefetch keeps on the way at once
+    private final static int maxPrefetches = 128;
+    // Reads queued by prefetch that still have to be put into the cache, and the spare entries
+    // later ones reuse
+    private static Prefetch[] prefetches = new Prefetch[maxPrefetches];
+
+    // The disk blocks of a file system block read ahead, a buffer for each, and the evictions
+    // count the cache gave each of them before the read was queued
+    private static class Prefetch
+    {
+        boolean busy;
+        int id;
+        int[] sectors = new int[0];
+        byte[][] data = new byte[0][];
+        int[] evictions = new int[0];
+    }
+
+    /**
+     * @param volumeJournal the journal of the mounted volume, or null if it has none
+     */
+    public static void setJournal(Journal volumeJournal)
+    {
+        journal = volumeJournal;
+    }
+
+    /**
+     * @return the journal of the mounted volume, or null if it has none
+     */
+    public static Journal journal()
+    {
+        return journal;
+    }
+
+    /**
+     * @param blockCache the cache every block goes through, or null to go straight to the disk
+     */
+    public static void setCache(Cache blockCache)
+    {
+        cache = blockCache;
+    }
+
+    /**
+     * Write every block held back in the cache to the disk, so that it is there before anything
+     * written after this call
+     */
+    public static void flush()
+    {
+        if (cache != null)
+        {
+            cache.writeBack();
+        }
+    }
+
+    /**
+     * Write the given blocks back from the cache if it holds them dirty, so that they are on the
+     * disk before anything written after this call. The rest of the cache is left alone
+     *
+     * @param blockIds the file system blocks
+     */
+    public static void flush(int[] blockIds)
+    {
+        if (cache != null && blockIds.length > 0)
+        {
+            cache.writeBack(sectorsPerBlock == 1 ? blockIds : sectorsOf(blockIds));
+        }
+    }
+
+    /**
+     * The disk has changed under the cache, drop everything it holds without writing it back
+     */
+    public static void invalidate()
+    {
+        if (cache != null)
+        {
+            cache.invalidate();
+        }
+    }
+
+    /**
+     * @param blockId the file system block
+     * @return true if part of the block is in the cache, so the copy on the disk may be old
+     */
+    public static boolean isCached(int blockId)
+    {
+        if (cache == null)
+        {
+            return false;
+        }
+        for (int i = 0; i < sectorsPerBlock; i++)
+        {
+            if (cache.contains(blockId * sectorsPerBlock + i))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keep a file system block in the cache until it is unpinned as many times
+     *
+     * @param blockId the file system block
+     */
+    public static void pin(int blockId)
+    {
+        if (cache != null)
+        {
+            for (int i = 0; i < sectorsPerBlock; i++)
+            {
+                cache.pin(blockId * sectorsPerBlock + i);
+            }
+        }
+    }
+
+    /**
+     * Undo one pin of a file system block
+     *
+     * @param blockId the file system block
+     */
+    public static void unpin(int blockId)
+    {
+        if (cache != null)
+        {
+            for (int i = 0; i < sectorsPerBlock; i++)
+            {
+                cache.unpin(blockId * sectorsPerBlock + i);
+            }
+        }
+    }
+
+    /**
+     * Write a metadata block through the journal, or in place on a volume without one
+     *
+     * @param blockId the file system block
+     * @param buffer  blockSize bytes to write
+     */
+    public static void log(int blockId, byte[] buffer)
+    {
+        if (journal != null)
+        {
+            journal.write(blockId, buffer);
+        } else
+        {
+            writeMetadata(blockId, buffer);
+        }
+    }
+
+    /**
+     * Newly allocated file data blocks were written, they reach the disk before the next commit
+     * that may point at them. Without a cache they are there already
+     *
+     * @param blockIds the file system blocks
+     */
+    public static void order(int[] blockIds)
+    {
+        if (journal != null && cache != null)
+        {
+            journal.order(blockIds);
+        }
+    }
+
+    /**
+     * A block is being handed out to hold file data, drop what the journal has of it
+     *
+     * @param blockId the file system block
+     */
+    public static void revoke(int blockId)
+    {
+        if (journal != null)
+        {
+            journal.revoke(blockId);
+        }
+    }
+
+    /**
+     * A block was freed, let the disk drop what it holds. With a journal this waits for the commit
+     * that frees the block, as the old contents still count until then
+     *
+     * @param blockId the file system block
+     */
+    public static void discard(int blockId)
+    {
+        if (journal != null)
+        {
+            journal.discard(blockId);
+        } else
+        {
+            discardNow(blockId);
+        }
+    }
+
+    /**
+     * Send the disk a discard hint for every disk block of a file system block
+     *
+     * @param blockId the file system block
+     */
+    public static void discardNow(int blockId)
+    {
+        for (int i = 0; i < sectorsPerBlock; i++)
+        {
+            SysLib.rawdiscard(blockId * sectorsPerBlock + i);
+        }
+    }
+
+    /**
+     * Set the size of a file system block
+     *
+     * @param size the new block size, a multiple of Disk.blockSize
+     * @return false if the size is not one that a file system block can have
+     */
+    public static boolean setBlockSize(int size)
+    {
+        if (!isValid(size))
+        {
+            return false;
+        }
+        blockSize = size;
+        sectorsPerBlock = size / Disk.blockSize;
+        BlockPool.setBlockSize(size);
+        return true;
+    }
+
+    /**
+     * @param size a block size
+     * @return true if a file system block can have this size
+     */
+    public static boolean isValid(int size)
+    {
+        return size >= Disk.blockSize && size <= maxBlockSize && size % Disk.blockSize == 0;
+    }
+
+    /**
+     * @return the size of a file system block in bytes
+     */
+    public static int blockSize()
+    {
+        return blockSize;
+    }
+
+    /**
+     * @param diskBlocks the number of disk blocks
+     * @return how many whole file system blocks they hold
+     */
+    public static int blocksOn(int diskBlocks)
+    {
+        return diskBlocks / sectorsPerBlock;
+    }
+
+    /**
+     * Read one file system block
+     *
+     * @param blockId the file system block
+     * @param buffer  blockSize bytes to read into
+     * @return the result of the raw read
+     */
+    public static int read(int blockId, byte[] buffer)
+    {
+        if (journal != null && journal.read(blockId, buffer))
+        {
+            return Kernel.OK;
+        }
+        return readBlocks(new int[]{blockId}, new byte[][]{buffer}, cache, false);
+    }
+
+    /**
+     * Read one inode or indirect block, which the cache keeps in its metadata pages
+     *
+     * @param blockId the file system block
+     * @param buffer  blockSize bytes to read into
+     * @return the result of the raw read
+     */
+    public static int readMetadata(int blockId, byte[] buffer)
+    {
+        if (journal != null && journal.read(blockId, buffer))
+        {
+            return Kernel.OK;
+        }
+        return readBlocks(new int[]{blockId}, new byte[][]{buffer}, cache, true);
+    }
+
+    /**
+     * Write one file system block
+     *
+     * @param blockId the file system block
+     * @param buffer  blockSize bytes to write
+     * @return the result of the raw write
+     */
+    public static int write(int blockId, byte[] buffer)
+    {
+        return writeBlocks(new int[]{blockId}, new byte[][]{buffer}, null, cache, false);
+    }
+
+    /**
+     * Write one inode or indirect block in place, into the cache's metadata pages
+     *
+     * @param blockId the file system block
+     * @param buffer  blockSize bytes to write
+     * @return the result of the raw write
+     */
+    public static int writeMetadata(int blockId, byte[] buffer)
+    {
+        return writeBlocks(new int[]{blockId}, new byte[][]{buffer}, null, cache, true);
+    }
+
+    /**
+     * Read several file system blocks with a single vectored read of all their disk blocks
+     *
+     * @param blockIds the file system blocks
+     * @param buffers  a blockSize buffer for each of them
+     * @return the result of the raw read
+     */
+    public static int read(int[] blockIds, byte[][] buffers)
+    {
+        return read(blockIds, buffers, false);
+    }
+
+    /**
+     * Read several inode or indirect blocks, which the cache keeps in its metadata pages
+     *
+     * @param blockIds the file system blocks
+     * @param buffers  a blockSize buffer for each of them
+     * @return the result of the raw read
+     */
+    public static int readMetadata(int[] blockIds, byte[][] buffers)
+    {
+        return read(blockIds, buffers, true);
+    }
+
+    // Read several blocks and lay the journal's images of them over what was read
+    private static int read(int[] blockIds, byte[][] buffers, boolean metadata)
+    {
+        int result = readBlocks(blockIds, buffers, cache, metadata);
+        if (journal != null)
+        {
+            for (int i = 0; i < blockIds.length; i++)
+            {
+                journal.read(blockIds[i], buffers[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write several file system blocks with a single vectored write of all their disk blocks
+     *
+     * @param blockIds the file system blocks
+     * @param buffers  a blockSize buffer for each of them
+     * @return the result of the raw write
+     */
+    public static int write(int[] blockIds, byte[][] buffers)
+    {
+        return writeBlocks(blockIds, buffers, null, cache, false);
+    }
+
+    /**
+     * Write several file system blocks, each taken from its buffer at an offset, so the blocks
+     * of one large buffer go to the cache or the disk without being copied out of it first
+     *
+     * @param blockIds the file system blocks
+     * @param buffers  the buffer each block is in, the same buffer may hold several
+     * @param offsets  where in its buffer each block starts
+     * @return the result of the raw write
+     */
+    public static int write(int[] blockIds, byte[][] buffers, int[] offsets)
+    {
+        return writeBlocks(blockIds, buffers, offsets, cache, false);
+    }
+
+    /**
+     * Write several inode or indirect blocks in place, into the cache's metadata pages
+     *
+     * @param blockIds the file system blocks
+     * @param buffers  a blockSize buffer for each of them
+     * @return the result of the raw write
+     */
+    public static int writeMetadata(int[] blockIds, byte[][] buffers)
+    {
+        return writeBlocks(blockIds, buffers, null, cache, true);
+    }
+
+    /**
+     * Read one file system block from the disk, skipping the cache
+     *
+     * @param blockId the file system block, one that is never read or written through the cache
+     * @param buffer  blockSize bytes to read into
+     * @return the result of the raw read
+     */
+    public static int readDirect(int blockId, byte[] buffer)
+    {
+        return readBlocks(new int[]{blockId}, new byte[][]{buffer}, null, false);
+    }
+
+    /**
+     * Write one file system block to the disk, skipping the cache
+     *
+     * @param blockId the file system block, one that is never read or written through the cache
+     * @param buffer  blockSize bytes to write
+     * @return the result of the raw write
+     */
+    public static int writeDirect(int blockId, byte[] buffer)
+    {
+        return writeBlocks(new int[]{blockId}, new byte[][]{buffer}, null, null, false);
+    }
+
+    /**
+     * Write several file system blocks to the disk in one trip, skipping the cache
+     *
+     * @param blockIds the file system blocks, ones that are never read or written through the cache
+     * @param buffers  a blockSize buffer for each of them
+     * @return the result of the raw write
+     */
+    public static int writeDirect(int[] blockIds, byte[][] buffers)
+    {
+        return writeBlocks(blockIds, buffers, null, null, false);
+    }
+
+    // Read file system blocks as their disk blocks, through the given cache unless it is null,
+    // into its metadata pages if they are metadata
+    private static int readBlocks(int[] blockIds, byte[][] buffers, Cache through, boolean metadata)
+    {
+        int[] sectors = (sectorsPerBlock == 1) ? blockIds : sectorsOf(blockIds);
+        byte[][] sectorData = buffers;
+        if (sectorsPerBlock > 1)
+        {
+            sectorData = new byte[sectors.length][];
+            for (int i = 0; i < sectors.length; i++)
+            {
+                sectorData[i] = BlockPool.takeSector();
+            }
+        }
+        int result;
+        if (through != null)
+        {
+            result = through.read(sectors, sectorData, metadata) ? Kernel.OK : Kernel.ERROR;
+        } else if (sectors.length == 1)
+        {
+            result = SysLib.rawread(sectors[0], sectorData[0]);
+        } else
+        {
+            result = SysLib.rawreadv(sectors, sectorData);
+        }
+        if (sectorsPerBlock > 1)
+        {
+            for (int i = 0; i < sectors.length; i++)
+            {
+                System.arraycopy(sectorData[i], 0, buffers[i / sectorsPerBlock],
+                        (i % sectorsPerBlock) * Disk.blockSize, Disk.blockSize);
+            }
+            BlockPool.give(sectorData);
+        }
+        return result;
+    }
+
+    // Write file system blocks as their disk blocks, through the given cache unless it is null,
+    // into its metadata pages if they are metadata. Each block starts at its offset in its buffer,
+    // or at 0 if there are no offsets, and each disk block is taken from where it lies in there
+    private static int writeBlocks(int[] blockIds, byte[][] buffers, int[] offsets, Cache through,
+                                   boolean metadata)
+    {
+        int[] sectors = (sectorsPerBlock == 1) ? blockIds : sectorsOf(blockIds);
+        byte[][] sectorData = buffers;
+        int[] sectorOffsets = offsets;
+        if (sectorsPerBlock > 1)
+        {
+            sectorData = new byte[sectors.length][];
+            sectorOffsets = new int[sectors.length];
+            for (int i = 0; i < sectors.length; i++)
+            {
+                sectorData[i] = buffers[i / sectorsPerBlock];
+                sectorOffsets[i] = (offsets == null ? 0 : offsets[i / sectorsPerBlock])
+                        + (i % sectorsPerBlock) * Disk.blockSize;
+            }
+        }
+        int result = Kernel.OK;
+        if (through != null)
+        {
+            for (int i = 0; i < sectors.length && result == Kernel.OK; i++)
+            {
+                if (!through.write(sectors[i], sectorData[i], sectorOffsets == null ? 0 : sectorOffsets[i],
+                        metadata))
+                {
+                    result = Kernel.ERROR;
+                }
+            }
+        } else if (sectorOffsets != null)
+        {
+            result = SysLib.rawwritev(sectors, sectorData, sectorOffsets);
+        } else if (sectors.length == 1)
+        {
+            result = SysLib.rawwrite(sectors[0], sectorData[0]);
+        } else
+        {
+            result = SysLib.rawwritev(sectors, sectorData);
+        }
+        return result;
+    }
+
+    /**
+     * Queue a read of one file system block into the cache without waiting for it. Nothing is
+     * queued without a cache, or if the disk has no room for it right now, so this never blocks.
+     * A part of the block that is cached already is read all the same, fill lets go of that copy
+     *
+     * @param blockId the file system block
+     * @return an id to pass to isDone, settle or cancel, or Kernel.ERROR if the read was not queued
+     */
+    public static int prefetch(int blockId)
+    {
+        if (cache == null)
+        {
+            return Kernel.ERROR;
+        }
+        Prefetch prefetch = claim();
+        if (prefetch == null)
+        {
+            return Kernel.ERROR;
+        }
+        for (int i = 0; i < prefetch.sectors.length; i++)
+        {
+            prefetch.sectors[i] = blockId * sectorsPerBlock + i;
+            // Taken before the read is queued, so a write back of the block that lands after it
+            // shows up as an eviction and the copy read is let go
+            prefetch.evictions[i] = cache.evictionsOf(prefetch.sectors[i]);
+            prefetch.data[i] = BlockPool.takeSector();
+        }
+        int id = SysLib.rawreadvAsync(prefetch.sectors, prefetch.data);
+        if (id >= 0)
+        {
+            prefetch.id = id;
+        } else
+        {
+            release(prefetch);
+        }
+        return id;
+    }
+
+    /**
+     * Check on a read queued by prefetch without waiting. A read found done is reaped, its block
+     * is then put into the cache with install, as there is nothing left for settle to wait for
+     *
+     * @param id what prefetch returned
+     * @return true once the read is done
+     */
+    public static boolean isDone(int id)
+    {
+        return SysLib.rawpoll(id) == 1;
+    }
+
+    /**
+     * Wait for a block queued by prefetch and put it into the cache
+     *
+     * @param id what prefetch returned, not yet found done by isDone
+     */
+    public static void settle(int id)
+    {
+        SysLib.rawwait(id);
+        install(id);
+    }
+
+    /**
+     * Put a block queued by prefetch into the cache once isDone has found its read done
+     *
+     * @param id what prefetch returned
+     */
+    public static void install(int id)
+    {
+        Prefetch prefetch = find(id);
+        if (prefetch != null)
+        {
+            for (int i = 0; i < prefetch.sectors.length; i++)
+            {
+                cache.fill(prefetch.sectors[i], prefetch.data[i], prefetch.evictions[i]);
+            }
+            release(prefetch);
+        }
+    }
+
+    /**
+     * Wait for a block queued by prefetch and let it go, the disk under it has changed
+     *
+     * @param id what prefetch returned
+     */
+    public static void cancel(int id)
+    {
+        SysLib.rawwait(id);
+        Prefetch prefetch = find(id);
+        if (prefetch != null)
+        {
+            release(prefetch);
+        }
+    }
+
+    // A spare entry with room for the disk blocks of one file system block, or null if every
+    // entry holds a read on the way
+    private static Prefetch claim()
+    {
+        synchronized (prefetches)
+        {
+            for (int i = 0; i < prefetches.length; i++)
+            {
+                if (prefetches[i] == null)
+                {
+                    prefetches[i] = new Prefetch();
+                }
+                Prefetch prefetch = prefetches[i];
+                if (!prefetch.busy)
+                {
+                    prefetch.busy = true;
+                    prefetch.id = Kernel.ERROR;
+                    if (prefetch.sectors.length != sectorsPerBlock)
+                    {
+                        prefetch.sectors = new int[sectorsPerBlock];
+                        prefetch.data = new byte[sectorsPerBlock][];
+                        prefetch.evictions = new int[sectorsPerBlock];
+                    }
+                    return prefetch;
+                }
+            }
+            return null;
+        }
+    }
+
+    // The entry of a read on the way, or null if there is none
+    private static Prefetch find(int id)
+    {
+        synchronized (prefetches)
+        {
+            for (int i = 0; i < prefetches.length && prefetches[i] != null; i++)
+            {
+                if (prefetches[i].busy && prefetches[i].id == id)
+                {
+                    return prefetches[i];
+                }
+            }
+            return null;
+        }
+    }
+
+    // Give the buffers of an entry back and make it spare again
+    private static void release(Prefetch prefetch)
+    {
+        BlockPool.give(prefetch.data);
+        Arrays.fill(prefetch.data, null);
+        synchronized (prefetches)
+        {
+            prefetch.busy = false;
+        }
+    }
+
+    // The disk blocks behind each of the file system blocks, in order
+    private static int[] sectorsOf(int[] blockIds)
+    {
+        int[] sectors = new int[blockIds.length * sectorsPerBlock];
+        for (int i = 0; i < sectors.length; i++)
+        {
+            sectors[i] = blockIds[i / sectorsPerBlock] * sectorsPerBlock + i % sectorsPerBlock;
+        }
+        return sectors;
+    }
+}
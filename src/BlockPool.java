@@ -0,0 +1,126 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ Spare block buffers for the file system and the block layer. A read or write takes the buffers
+ it needs here and gives them back when it is done with them, so steady file I/O reuses the same
+ few arrays instead of making new ones for the garbage collector on every call. There is one
+ pool of file system blocks and one of disk blocks, they are the same pool while the two sizes are.
+
+ A pool is a fixed row of slots that threads take from and give to with compare-and-set, without
+ any lock. Each thread starts looking at a slot of its own so threads seldom meet on one. A pool
+ that runs dry hands out a new buffer, and one that is full lets the given buffer go
+ */
+
+public class BlockPool
+{
+    // Buffers each pool keeps at most
+    private final static int capacity = 128;
+
+    private static volatile BlockPool sectors = new BlockPool(Disk.blockSize);
+    private static volatile BlockPool blocks = sectors;
+
+    private int size;
+    private AtomicReferenceArray<byte[]> slots = new AtomicReferenceArray<byte[]>(capacity);
+
+    private BlockPool(int size)
+    {
+        this.size = size;
+    }
+
+    /**
+     * The file system block size changed, buffers of the old size are no use any more
+     *
+     * @param blockSize the new size of a file system block
+     */
+    public static void setBlockSize(int blockSize)
+    {
+        if (blockSize != blocks.size)
+        {
+            blocks = (blockSize == Disk.blockSize) ? sectors : new BlockPool(blockSize);
+        }
+    }
+
+    /**
+     * @return a buffer of one file system block, holding whatever it last held
+     */
+    public static byte[] take()
+    {
+        return blocks.takeBuffer();
+    }
+
+    /**
+     * @return a buffer of one disk block, holding whatever it last held
+     */
+    public static byte[] takeSector()
+    {
+        return sectors.takeBuffer();
+    }
+
+    /**
+     * Hand a buffer back once nothing refers to it any more. Buffers of neither size are ignored
+     *
+     * @param buffer a buffer from take or takeSector, or null
+     */
+    public static void give(byte[] buffer)
+    {
+        if (buffer == null)
+        {
+            return;
+        }
+        BlockPool pool = blocks;
+        if (buffer.length == pool.size)
+        {
+            pool.giveBuffer(buffer);
+        } else if (buffer.length == Disk.blockSize)
+        {
+            sectors.giveBuffer(buffer);
+        }
+    }
+
+    /**
+     * Hand back every buffer of an array
+     *
+     * @param buffers buffers from take or takeSector, null entries are skipped
+     */
+    public static void give(byte[][] buffers)
+    {
+        for (int i = 0; i < buffers.length; i++)
+        {
+            give(buffers[i]);
+        }
+    }
+
+    private byte[] takeBuffer()
+    {
+        int start = home();
+        for (int i = 0; i < capacity; i++)
+        {
+            int slot = (start + i) % capacity;
+            byte[] buffer = slots.get(slot);
+            if (buffer != null && slots.compareAndSet(slot, buffer, null))
+            {
+                return buffer;
+            }
+        }
+        return new byte[size];
+    }
+
+    private void giveBuffer(byte[] buffer)
+    {
+        int start = home();
+        for (int i = 0; i < capacity; i++)
+        {
+            int slot = (start + i) % capacity;
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, buffer))
+            {
+                return;
+            }
+        }
+    }
+
+    // The slot the calling thread looks at first
+    private static int home()
+    {
+        return (int) (Thread.currentThread().getId() % capacity);
+    }
+}
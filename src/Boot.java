@@ -7,7 +7,9 @@ public class Boot
 
     public static void main ( String args[] ) {
 	SysLib.cerr( "threadOS ver 1.0:\n" );
-	SysLib.boot( );
+	// e.g. disksched=sstf; there is nothing to run without a DISK
+	if ( SysLib.boot( args ) == ERROR )
+	    System.exit( 1 );
 	SysLib.cerr( "Type ? for help\n" );
 
 	String[] loader = new String[1];
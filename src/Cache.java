@@ -0,0 +1,728 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A write-back cache of disk blocks.  It serves the cread/cwrite system
+ * calls and, when threadOS boots with "fscache=on", every block the file
+ * system reads or writes through BlockIO.  Which page a missed block
+ * replaces is up to a ReplacementPolicy, picked at boot with
+ * "cachepolicy=secondchance|arc|2q".
+ *
+ * Many threads use the cache at once, so there is no lock over all of it.
+ * The index from block to page is split into stripes, each under its own
+ * lock, and a hit only takes the lock of its block's stripe.  A page is
+ * taken out of the index, written back or refilled only by the thread that
+ * has claimed it, and the policy picks victims without any stripe lock.
+ *
+ * A Flusher, if one is set, writes dirty pages back in the background, so
+ * an eviction then writes back only its own page if it is still dirty.
+ *
+ * A share of the pages, "cachemeta=N" at boot, can be kept for metadata:
+ * the blocks read and written with metadata set, and pinned blocks, go
+ * there and are replaced only by each other, with a policy of their own,
+ * so a data scan never reaches them.  A pinned block is never evicted at
+ * all until it is unpinned as often as it was pinned.  When every page a
+ * block could go to is pinned, the block is not cached: a read goes to the
+ * disk and a write goes through to it.
+ *
+ * The cache counts its hits, misses, write-backs, evictions and the pages
+ * looked at to find each victim, and a MissRatioCurve, if one is set,
+ * follows every access to estimate the hit ratio at other sizes; stats( )
+ * reports both.
+ */
+public class Cache {
+    private static final int stripeCount = 16;
+    private int blockSize;            // 512 bytes
+    private byte pages[][];           // the actual pages holding block data
+    private Entry pageTable[];
+    private Stripe stripes[];
+    private Partition data;
+    private Partition metadata;       // 0 pages if none are kept
+    private AtomicInteger dirtyPages; // pages marked dirty
+    private Flusher flusher;          // null if there is none
+    private MissRatioCurve curve;     // null if there is none
+    private AtomicLong hits, misses, writeBacks, evictions;
+    private AtomicLong victimScans;   // victims looked for
+    private AtomicLong victimPages;   // pages looked at to find them
+
+    private class Entry {
+	public static final int INVALID = -1;
+	// set under the lock of frame's stripe, read without it by writeBack
+	public volatile boolean dirty;
+	public volatile long dirtied; // when dirty was last set, in ms
+	public volatile boolean writing; // a copy is on its way to disk
+	public int frame;             // the disk block held, or INVALID
+	public Partition partition;   // the share the page belongs to
+	public volatile boolean pinned; // frame is pinned, under its lock
+	// set while one thread evicts, refills or writes back the page
+	public AtomicBoolean claimed = new AtomicBoolean( false );
+
+	public Entry( ) {
+	    dirty = false;
+	    frame = INVALID;
+	}
+    }
+
+    // A share of the index, and the lock over its pages' contents
+    private class Stripe {
+	HashMap<Integer, Integer> index
+	    = new HashMap<Integer, Integer>( ); // blockId -> entry
+	HashMap<Integer, Integer> pins
+	    = new HashMap<Integer, Integer>( ); // blockId -> times pinned
+	int evictions = 0;              // blocks of this stripe let go so far
+    }
+
+    // A run of pages replaced by a policy of its own
+    private class Partition {
+	int pages;
+	ReplacementPolicy policy;
+	AtomicInteger pinned = new AtomicInteger( 0 ); // pages pinned
+
+	// pages first .. first + pages - 1
+	Partition( int first, int pages, String policyName ) {
+	    this.pages = pages;
+	    policy = policyOf( policyName, first, pages );
+	}
+
+	boolean isFull( ) {
+	    return pinned.get( ) >= pages;
+	}
+    }
+
+    public Cache( int blockSize, int cacheBlocks ) {
+	this( blockSize, cacheBlocks, 0, "secondchance" );
+    }
+
+    // metaBlocks of the cacheBlocks pages are kept for metadata; each
+    // share is replaced by an instance of the named policy
+    public Cache( int blockSize, int cacheBlocks, int metaBlocks,
+		  String policyName ) {
+	this.blockSize = blockSize;
+	metaBlocks = Math.max( 0, Math.min( metaBlocks, cacheBlocks - 1 ) );
+	metadata = new Partition( 0, metaBlocks, policyName );
+	data = new Partition( metaBlocks, cacheBlocks - metaBlocks, policyName );
+	pages = new byte[cacheBlocks][blockSize];
+	pageTable = new Entry[cacheBlocks];
+	for ( int i = 0; i < cacheBlocks; i++ ) {
+	    pageTable[i] = new Entry( );
+	    pageTable[i].partition = ( i < metaBlocks ) ? metadata : data;
+	}
+	stripes = new Stripe[stripeCount];
+	for ( int i = 0; i < stripeCount; i++ )
+	    stripes[i] = new Stripe( );
+	dirtyPages = new AtomicInteger( 0 );
+	flusher = null;
+	curve = null;
+	hits = new AtomicLong( 0 );
+	misses = new AtomicLong( 0 );
+	writeBacks = new AtomicLong( 0 );
+	evictions = new AtomicLong( 0 );
+	victimScans = new AtomicLong( 0 );
+	victimPages = new AtomicLong( 0 );
+    }
+
+    public void setFlusher( Flusher flusher ) {
+	this.flusher = flusher;
+    }
+
+    public void setMissRatioCurve( MissRatioCurve curve ) {
+	this.curve = curve;
+    }
+
+    public int size( ) {
+	return pageTable.length;
+    }
+
+    public int dirtyPages( ) {
+	return dirtyPages.get( );
+    }
+
+    // The caller holds the lock of the stripe the page's block is in
+    private void markDirty( Entry e ) {
+	if ( e.dirty )
+	    return;
+	e.dirty = true;
+	e.dirtied = System.currentTimeMillis( );
+	int dirty = dirtyPages.incrementAndGet( );
+	if ( flusher != null )
+	    flusher.dirtied( dirty );
+    }
+
+    private void markClean( Entry e ) {
+	if ( e.dirty ) {
+	    e.dirty = false;
+	    dirtyPages.decrementAndGet( );
+	}
+    }
+
+    // Translate a boot option such as "arc" into a replacement policy for
+    // the given run of pages
+    public static ReplacementPolicy policyOf( String name, int firstPage,
+					      int pages ) {
+	if ( name.equalsIgnoreCase( "arc" ) )
+	    return new ArcPolicy( firstPage, pages );
+	if ( name.equalsIgnoreCase( "2q" ) )
+	    return new TwoQueuePolicy( firstPage, pages );
+	return new SecondChancePolicy( firstPage, pages );
+    }
+
+    private ReplacementPolicy policyAt( int entry ) {
+	return pageTable[entry].partition.policy;
+    }
+
+    // Keep blockId in the cache, in the metadata pages if there are any,
+    // until it is unpinned as many times
+    public void pin( int blockId ) {
+	Stripe stripe = stripeOf( blockId );
+	synchronized ( stripe ) {
+	    Integer count = stripe.pins.get( blockId );
+	    stripe.pins.put( blockId, ( count == null ) ? 1 : count + 1 );
+	    int entry = lookup( stripe, blockId );
+	    if ( entry != -1 )
+		setPinned( entry, true );
+	}
+    }
+
+    public void unpin( int blockId ) {
+	Stripe stripe = stripeOf( blockId );
+	synchronized ( stripe ) {
+	    Integer count = stripe.pins.get( blockId );
+	    if ( count == null )
+		return;
+	    if ( count > 1 ) {
+		stripe.pins.put( blockId, count - 1 );
+		return;
+	    }
+	    stripe.pins.remove( blockId );
+	    int entry = lookup( stripe, blockId );
+	    if ( entry != -1 )
+		setPinned( entry, false );
+	}
+    }
+
+    private boolean isPinned( int blockId ) {
+	Stripe stripe = stripeOf( blockId );
+	synchronized ( stripe ) {
+	    return stripe.pins.containsKey( blockId );
+	}
+    }
+
+    // The caller holds the lock of the stripe the page's block is in
+    private void setPinned( int entry, boolean pinned ) {
+	Entry e = pageTable[entry];
+	if ( e.pinned == pinned )
+	    return;
+	e.pinned = pinned;
+	if ( pinned )
+	    e.partition.pinned.incrementAndGet( );
+	else
+	    e.partition.pinned.decrementAndGet( );
+    }
+
+    private Stripe stripeOf( int blockId ) {
+	return stripes[blockId % stripeCount];
+    }
+
+    // The entry holding blockId, or -1; the caller holds the stripe lock
+    private int lookup( Stripe stripe, int blockId ) {
+	Integer entry = stripe.index.get( blockId );
+	return ( entry == null ) ? -1 : entry;
+    }
+
+    // Claim page entry for the calling thread, false if another has it
+    // or it holds a pinned block
+    public boolean claim( int entry ) {
+	victimPages.incrementAndGet( );
+	return pageTable[entry].pinned == false 
+	    && pageTable[entry].claimed.compareAndSet( false, true );
+    }
+
+    // Claim the first page of an iteration over pages that no other thread
+    // has claimed, or return -1
+    public int claimFirst( Iterator<Integer> entries ) {
+	while ( entries.hasNext( ) ) {
+	    int entry = entries.next( );
+	    if ( claim( entry ) )
+		return entry;
+	}
+	return -1;
+    }
+
+    // A policy looked at page entry for a victim and passed it over
+    // without trying to claim it
+    public void passed( int entry ) {
+	victimPages.incrementAndGet( );
+    }
+
+    // Claim a page for blockId from the policy of its partition.  Metadata
+    // takes a data page when its own are all pinned or claimed, rather than
+    // wait behind a write-back; -1 if the data pages are all pinned too.
+    private int claimVictim( int blockId, boolean isMetadata ) {
+	victimScans.incrementAndGet( );
+	int entry;
+	if ( isMetadata && metadata.isFull( ) == false 
+	     && ( entry = metadata.policy.victim( this, blockId ) ) != -1 )
+	    return entry;
+	while ( ( entry = data.policy.victim( this, blockId ) ) == -1 ) {
+	    if ( data.isFull( ) )
+		return -1;
+	    Thread.yield( ); // every page is claimed right now
+	}
+	return entry;
+    }
+
+    // Empty a claimed page, writing it back first if it is dirty, along
+    // with the other dirty pages no thread has claimed, so the disk sees
+    // them in one batch.
+    // Writers may still hit the page until it leaves the index.  Returns
+    // false, with the page still full, if its block was pinned meanwhile.
+    private boolean evict( int victimEntry ) {
+	Entry e = pageTable[victimEntry];
+	if ( e.dirty && flusher == null )
+	    writeBack( pageTable.length, Long.MAX_VALUE );
+	while ( e.frame != Entry.INVALID ) {
+	    Stripe stripe = stripeOf( e.frame );
+	    byte copy[] = null;
+	    synchronized ( stripe ) {
+		if ( e.pinned )
+		    return false;
+		if ( e.dirty ) {
+		    copy = pages[victimEntry].clone( );
+		    markClean( e );
+		    e.writing = true;
+		} else {
+		    stripe.index.remove( e.frame );
+		    stripe.evictions++;
+		    policyAt( victimEntry ).remove( victimEntry, e.frame );
+		    evictions.incrementAndGet( );
+		    e.frame = Entry.INVALID;
+		}
+	    }
+	    if ( copy != null ) {
+		writeBacks.incrementAndGet( );
+		SysLib.rawwrite( e.frame, copy ); // then check it again
+		e.writing = false;
+	    }
+	}
+	return true;
+    }
+
+    // Cache the block at offset in buffer as blockId.  A read passes the
+    // evictions count of the block's stripe from when it missed: if a
+    // block of the stripe was let go since, the disk copy it read may have
+    // been old and it returns false to be retried.  If another thread
+    // cached the block meanwhile, a read takes that copy and a write
+    // overwrites it.
+    private boolean install( int blockId, byte buffer[], int offset,
+			     boolean dirty, int evictions,
+			     boolean isMetadata ) {
+	isMetadata = isMetadata || isPinned( blockId );
+	int entry;
+	while ( ( entry = claimVictim( blockId, isMetadata ) ) != -1 
+		&& evict( entry ) == false )
+	    pageTable[entry].claimed.set( false );
+	Stripe stripe = stripeOf( blockId );
+	try {
+	    synchronized ( stripe ) {
+		int cached = lookup( stripe, blockId );
+		if ( cached != -1 ) {
+		    if ( dirty ) {
+			System.arraycopy( buffer, offset, pages[cached], 0,
+					  blockSize );
+			markDirty( pageTable[cached] );
+		    } else
+			System.arraycopy( pages[cached], 0, buffer, offset,
+					  blockSize );
+		    policyAt( cached ).touch( cached );
+		    return true;
+		}
+		if ( dirty == false && stripe.evictions != evictions )
+		    return false;
+		if ( entry == -1 ) {
+		    // every page it could take is pinned: a read is not cached
+		    // and a write goes through, once the stripe lock is let go
+		    if ( dirty == false )
+			return true;
+		} else {
+		    Entry e = pageTable[entry];
+		    System.arraycopy( buffer, offset, pages[entry], 0, blockSize );
+		    e.frame = blockId;
+		    if ( dirty )
+			markDirty( e );
+		    if ( stripe.pins.containsKey( blockId ) )
+			setPinned( entry, true );
+		    stripe.index.put( blockId, entry );
+		    policyAt( entry ).insert( entry, blockId );
+		    return true;
+		}
+	    }
+	} finally {
+	    if ( entry != -1 )
+		pageTable[entry].claimed.set( false );
+	}
+	writeThrough( blockId, buffer, offset );
+	return true;
+    }
+
+    // Write a block no page can take straight to the disk, without the
+    // stripe lock, as evict does.  Then bring up to date any copy another
+    // thread cached meanwhile, and have every read that missed before the
+    // write landed read the disk again.
+    private void writeThrough( int blockId, byte buffer[], int offset ) {
+	SysLib.rawwritev( new int[] { blockId }, new byte[][] { buffer },
+			  new int[] { offset } );
+	Stripe stripe = stripeOf( blockId );
+	synchronized ( stripe ) {
+	    stripe.evictions++;
+	    int cached = lookup( stripe, blockId );
+	    if ( cached != -1 )
+		System.arraycopy( buffer, offset, pages[cached], 0, blockSize );
+	}
+    }
+
+    // Copy a cached block into buffer; on a miss return the stripe's
+    // evictions count, to hand to install, or -1 on a hit
+    private int hit( int blockId, byte buffer[] ) {
+	Stripe stripe = stripeOf( blockId );
+	synchronized ( stripe ) {
+	    int entry = lookup( stripe, blockId );
+	    if ( entry == -1 )
+		return stripe.evictions;
+	    System.arraycopy( pages[entry], 0, buffer, 0, blockSize );
+	    policyAt( entry ).touch( entry );
+	    return -1;
+	}
+    }
+
+    // The evictions count of the block's stripe, to hand to fill with a
+    // copy of the block read from the disk after this, or -1 if it is
+    // cached already
+    public int evictionsOf( int blockId ) {
+	Stripe stripe = stripeOf( blockId );
+	synchronized ( stripe ) {
+	    return ( lookup( stripe, blockId ) == -1 ) ? stripe.evictions : -1;
+	}
+    }
+
+    // Cache a clean copy of a block read ahead of its reader, unless the
+    // block is cached by now or a block of its stripe was let go since
+    // evictionsOf, as the copy may be old.  A copy let go is not read
+    // again: the reader misses on it as on any other block.
+    public void fill( int blockId, byte buffer[], int evictions ) {
+	if ( evictions != -1 )
+	    install( blockId, buffer, 0, false, evictions, false );
+    }
+
+    public boolean read( int blockId, byte buffer[] ) {
+	return read( blockId, buffer, false );
+    }
+
+    // Read a block, from the metadata pages if it is metadata and misses
+    public boolean read( int blockId, byte buffer[], boolean isMetadata ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cread\n" );
+	    return false;
+	}
+	if ( curve != null )
+	    curve.access( blockId );
+	int evictions = hit( blockId, buffer );
+	if ( evictions == -1 ) {
+	    hits.incrementAndGet( );
+	    return true;
+	}
+	// page miss!!  read the requested block from disk and cache it
+	misses.incrementAndGet( );
+	load( blockId, buffer, evictions, isMetadata );
+	return true;
+    }
+
+    // Read a missed block from disk and cache it, again while the copy
+    // read may be old, unless another thread caches it meanwhile
+    private void load( int blockId, byte buffer[], int evictions,
+		       boolean isMetadata ) {
+	while ( evictions != -1 ) {
+	    SysLib.rawread( blockId, buffer );
+	    if ( install( blockId, buffer, 0, false, evictions, isMetadata ) )
+		return;
+	    evictions = hit( blockId, buffer );
+	}
+    }
+
+    public boolean read( int blockIds[], byte buffers[][] ) {
+	return read( blockIds, buffers, false );
+    }
+
+    // Read a batch of blocks: hits come from the pages, and every miss is
+    // read from the disk in a single vectored read before it is cached
+    public boolean read( int blockIds[], byte buffers[][], 
+			 boolean isMetadata ) {
+	int missing[] = new int[blockIds.length];
+	int evictions[] = new int[blockIds.length];
+	int missCount = 0;
+	for ( int i = 0; i < blockIds.length; i++ ) {
+	    if ( blockIds[i] < 0 ) {
+		SysLib.cerr( "threadOS: a wrong blockId for cread\n" );
+		return false;
+	    }
+	    if ( curve != null )
+		curve.access( blockIds[i] );
+	    if ( ( evictions[missCount] = hit( blockIds[i], buffers[i] ) ) != -1 )
+		missing[missCount++] = i;
+	}
+	hits.addAndGet( blockIds.length - missCount );
+	misses.addAndGet( missCount );
+	if ( missCount == 0 )
+	    return true;
+
+	int missIds[] = new int[missCount];
+	byte missBuffers[][] = new byte[missCount][];
+	for ( int i = 0; i < missCount; i++ ) {
+	    missIds[i] = blockIds[missing[i]];
+	    missBuffers[i] = buffers[missing[i]];
+	}
+	SysLib.rawreadv( missIds, missBuffers );
+	for ( int i = 0; i < missCount; i++ ) {
+	    if ( install( missIds[i], missBuffers[i], 0, false, evictions[i], 
+			  isMetadata ) == false )
+		load( missIds[i], missBuffers[i], 
+		      hit( missIds[i], missBuffers[i] ), isMetadata );
+	}
+	return true;
+    }
+
+    public boolean write( int blockId, byte buffer[] ) {
+	return write( blockId, buffer, false );
+    }
+
+    public boolean write( int blockId, byte buffer[], boolean isMetadata ) {
+	return write( blockId, buffer, 0, isMetadata );
+    }
+
+    // Write the block at offset in buffer, to the metadata pages if it is
+    // metadata and misses
+    public boolean write( int blockId, byte buffer[], int offset,
+			  boolean isMetadata ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cwrite\n" );
+	    return false;
+	}
+	if ( curve != null )
+	    curve.access( blockId );
+	Stripe stripe = stripeOf( blockId );
+	synchronized ( stripe ) {
+	    int entry = lookup( stripe, blockId );
+	    if ( entry != -1 ) {
+		// cache hit!!
+		hits.incrementAndGet( );
+		System.arraycopy( buffer, offset, pages[entry], 0, blockSize );
+		markDirty( pageTable[entry] );
+		policyAt( entry ).touch( entry );
+		return true;
+	    }
+	}
+	// page miss!!  the whole block is written, nothing to read first
+	misses.incrementAndGet( );
+	return install( blockId, buffer, offset, true, 0, isMetadata );
+    }
+
+    // True if blockId is in the cache, so its copy on the disk may be old
+    public boolean contains( int blockId ) {
+	Stripe stripe = stripeOf( blockId );
+	synchronized ( stripe ) {
+	    return lookup( stripe, blockId ) != -1;
+	}
+    }
+
+    // Write every dirty page back in block order with one vectored write,
+    // without syncing the disk.  A page another thread has claimed is left
+    // to that thread until it lets go of it, then written here if it is
+    // still dirty, and a write-back under way is waited for, so that a
+    // sync queued after this covers every page dirtied before the call.
+    public void writeBack( ) {
+	long before = System.currentTimeMillis( ) + 1;
+	while ( writeBack( 0, before ) > 0 || isWritingBack( before ) )
+	    Thread.yield( );
+    }
+
+    // True while a page dirtied before the given time is still dirty, or
+    // any page is on its way to the disk
+    private boolean isWritingBack( long dirtiedBefore ) {
+	for ( int i = 0; i < pageTable.length; i++ ) {
+	    Entry e = pageTable[i];
+	    if ( e.writing || ( e.dirty && e.dirtied < dirtiedBefore ) )
+		return true;
+	}
+	return false;
+    }
+
+    // Write back the pages dirtied before the given time, and the oldest
+    // of the others until at least count pages go, in the same way.
+    // Returns the number of pages written.
+    public int writeBack( int count, long dirtiedBefore ) {
+	// the dirty pages, oldest first
+	int oldest[] = new int[pageTable.length];
+	int candidates = 0;
+	for ( int i = 0; i < pageTable.length; i++ ) {
+	    if ( pageTable[i].dirty == false )
+		continue;
+	    int j = candidates++;
+	    while ( j > 0 
+		    && pageTable[oldest[j - 1]].dirtied > pageTable[i].dirtied ) {
+		oldest[j] = oldest[j - 1];
+		j--;
+	    }
+	    oldest[j] = i;
+	}
+	return writePages( oldest, candidates, count, dirtiedBefore );
+    }
+
+    // Write back the pages held by the given blocks that were dirtied
+    // before this call, with one vectored write, and wait for those another
+    // thread has claimed or is writing back, as writeBack( ) does
+    public void writeBack( int blockIds[] ) {
+	long before = System.currentTimeMillis( ) + 1;
+	int entries[] = new int[blockIds.length];
+	while ( true ) {
+	    int candidates = 0;
+	    for ( int i = 0; i < blockIds.length; i++ ) {
+		Stripe stripe = stripeOf( blockIds[i] );
+		synchronized ( stripe ) {
+		    int entry = lookup( stripe, blockIds[i] );
+		    if ( entry == -1 )
+			continue;
+		    Entry e = pageTable[entry];
+		    if ( e.writing || ( e.dirty && e.dirtied < before ) )
+			entries[candidates++] = entry;
+		}
+	    }
+	    if ( candidates == 0 )
+		return;
+	    if ( writePages( entries, candidates, 0, before ) == 0 )
+		Thread.yield( );
+	}
+    }
+
+    // Write back, of the first n given pages, those dirtied before the
+    // given time, and others until at least count pages go, skipping the
+    // pages other threads have claimed.  Returns the number written.
+    private int writePages( int entries[], int n, int count,
+			    long dirtiedBefore ) {
+	int dirty[] = new int[pageTable.length];
+	byte copies[][] = new byte[pageTable.length][];
+	int written = 0;
+	for ( int k = 0; k < n; k++ ) {
+	    int i = entries[k];
+	    Entry e = pageTable[i];
+	    if ( written >= count && e.dirtied >= dirtiedBefore )
+		continue;
+	    if ( e.claimed.compareAndSet( false, true ) == false )
+		continue;
+	    boolean keep = false;
+	    if ( e.frame != Entry.INVALID ) {
+		synchronized ( stripeOf( e.frame ) ) {
+		    if ( e.dirty ) {
+			copies[i] = pages[i].clone( );
+			markClean( e );
+			e.writing = true;
+			keep = true;
+		    }
+		}
+	    }
+	    if ( keep == false ) {
+		e.claimed.set( false );
+		continue;
+	    }
+	    // insertion sort on the block held
+	    int j = written++;
+	    while ( j > 0 && pageTable[dirty[j - 1]].frame > e.frame ) {
+		dirty[j] = dirty[j - 1];
+		j--;
+	    }
+	    dirty[j] = i;
+	}
+	if ( written == 0 )
+	    return 0;
+	int blockIds[] = new int[written];
+	byte buffers[][] = new byte[written][];
+	for ( int i = 0; i < written; i++ ) {
+	    blockIds[i] = pageTable[dirty[i]].frame;
+	    buffers[i] = copies[dirty[i]];
+	}
+	writeBacks.addAndGet( written );
+	SysLib.rawwritev( blockIds, buffers );
+	for ( int i = 0; i < written; i++ ) {
+	    pageTable[dirty[i]].writing = false;
+	    pageTable[dirty[i]].claimed.set( false );
+	}
+	return written;
+    }
+
+    // Drop every page, dirty or not, as the disk has changed under them
+    public void invalidate( ) {
+	for ( int i = 0; i < pageTable.length; i++ ) {
+	    Entry e = pageTable[i];
+	    while ( e.claimed.compareAndSet( false, true ) == false )
+		Thread.yield( );
+	    if ( e.frame != Entry.INVALID ) {
+		Stripe stripe = stripeOf( e.frame );
+		synchronized ( stripe ) {
+		    stripe.index.remove( e.frame );
+		    stripe.evictions++;
+		    policyAt( i ).remove( i, e.frame );
+		    setPinned( i, false ); // until it is cached again
+		    e.frame = Entry.INVALID;
+		    markClean( e );
+		}
+	    }
+	    e.claimed.set( false );
+	}
+	// a block read ahead before this and cached after it is old too
+	for ( int i = 0; i < stripeCount; i++ )
+	    synchronized ( stripes[i] ) {
+		stripes[i].evictions++;
+	    }
+    }
+
+    // The counters since boot, one line each, and the hit ratio an LRU
+    // cache is estimated to get at other sizes
+    public String stats( ) {
+	long hit = hits.get( );
+	long miss = misses.get( );
+	long scans = victimScans.get( );
+	String s = "cache: " + pageTable.length + " pages, " 
+	    + metadata.pages + " for metadata, " 
+	    + ( metadata.pinned.get( ) + data.pinned.get( ) ) + " pinned\n"
+	    + "cache: " + hit + " hits, " + miss + " misses, hit ratio " 
+	    + percent( hit, hit + miss ) + "\n"
+	    + "cache: " + writeBacks.get( ) + " write-backs, " 
+	    + evictions.get( ) + " evictions, " + scans + " victim scans of " 
+	    + ( scans == 0 ? 0 : victimPages.get( ) * 10 / scans / 10.0 ) 
+	    + " pages on average\n";
+	if ( curve == null )
+	    return s;
+	s += "cache: estimated LRU hit ratio at";
+	int step = Math.max( 1, pageTable.length / 2 );
+	for ( int size = step; size <= curve.depth( ); size += step )
+	    s += " " + size + ":" + percent( curve.hitRatio( size ) );
+	return s + "\n";
+    }
+
+    private static String percent( long part, long whole ) {
+	return percent( whole == 0 ? 0.0 : ( double )part / whole );
+    }
+
+    private static String percent( double ratio ) {
+	return ( long )( ratio * 1000 ) / 10.0 + "%";
+    }
+
+    public void sync( ) {
+	writeBack( );
+	SysLib.sync( );
+    }
+
+    public void flush( ) {
+	writeBack( );
+	invalidate( );
+	SysLib.sync( );
+    }
+}
@@ -0,0 +1,9 @@
+// What the test programs print for each thing they check, one line each
+// under the name of the test.
+
+class Check {
+    public static boolean report( String what, boolean ok ) {
+	SysLib.cout( ( ok ? "  ok   " : "  FAIL " ) + what + "\n" );
+	return ok;
+    }
+}
@@ -194,7 +194,7 @@ public class Directory
                     theName.append(fnames[i][j]);
 
                 }
-                if (theName.equals(filename))
+                if (theName.toString().equals(filename))
                 {
                     return (short) i;
                 }
@@ -1,165 +1,435 @@
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
 
-public class Disk extends Thread {
+public class Disk extends Thread implements BlockDevice {
     public static final int blockSize = 512;
-    private final int trackSize = 10;
-    private final int transferTime = 20;
-    private final int delayPerTrack = 1;
+    private static final int trackSize = 10;
     private int diskSize;
 
-    private byte data[];
+    private DiskImage image;     // host storage behind the blocks
+    private LatencyModel latency; // how long each request takes
 
-    private int command;
-    private final int IDLE = 0;
-    private final int READ = 1;
-    private final int WRITE = 2;
-    private final int SYNC = 3;
-    private boolean readyBuffer;
+    // Commands carried by a DiskRequest
+    static final int READ = 1;
+    static final int WRITE = 2;
+    static final int SYNC = 3;
+    static final int DISCARD = 4;
+    static final int SNAPSHOT = 5;
+    static final int ROLLBACK = 6;
+
+    // Request scheduling policies
+    public static final int FCFS = 0;  // arrival order
+    public static final int SSTF = 1;  // shortest seek first
+    public static final int SCAN = 2;  // sweep to the disk edge and back
+    public static final int CLOOK = 3; // sweep up, then jump to the lowest
+    private final int queueSize = 16;  // max pending requests
+    private final int maxRun = 64;     // most blocks moved in one transfer
+
+    private int policy;
+    private Vector<DiskRequest> queue; // pending requests, in arrival order
+    private boolean ascending;   // SCAN sweep direction
+    private int edgeBlockId;     // edge a SCAN sweep turns at, or -1
 
-    private byte[] buffer;
     private int currentBlockId;
-    private int targetBlockId;
+    private int inService;       // requests taken off the queue, not done
 
     public Disk( int totalBlocks ) {
+	this( totalBlocks, CLOOK );
+    }
+
+    public Disk( int totalBlocks, int policy ) {
+	this( totalBlocks, policy, null );
+    }
+
+    public Disk( int totalBlocks, int policy, DiskImage image ) {
+	this( totalBlocks, policy, image, null );
+    }
+
+    public Disk( int totalBlocks, int policy, DiskImage image, 
+		 LatencyModel latency ) {
 	diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
-	data = new byte[ diskSize * blockSize ];
-	command = IDLE;
-	readyBuffer = false;
-	buffer = null;
+	this.image = ( image != null ) ? image : 
+	    new HeapDiskImage( "DISK", diskSize );
+	this.latency = ( latency != null ) ? latency : 
+	    new TrackLatency( trackSize );
+	this.policy = policy;
+	queue = new Vector<DiskRequest>( );
+	ascending = true;
+	edgeBlockId = -1;
 	currentBlockId = 0;
-	targetBlockId = 0;
-	try {
-	    FileInputStream ifstream = new FileInputStream( "DISK" );
-	    int readableSize = ( ifstream.available( ) < data.length ) ?
-		ifstream.available( ) : data.length; 
-	    ifstream.read( data, 0, readableSize );
-	    ifstream.close( );
-	} catch ( FileNotFoundException e ) {
-	    SysLib.cerr( "threadOS: DISK created\n" );
-	} catch ( IOException e ) {
-	    SysLib.cerr( e.toString( ) + "\n" );
-	}
+	inService = 0;
+    }
+
+    public int getDiskSize( ) {
+	return diskSize;
+    }
+
+    // Open the host file behind a disk: "heap" loads it into memory at
+    // boot, "mapped" maps it with FileChannel.map, "lazy" pages blocks
+    // in as they are first used and "sparse" keeps only non-zero blocks.
+    // It throws if the file cannot be used, and nothing is written to it.
+    public static DiskImage openImage( String kind, String fileName, 
+				       int totalBlocks ) throws IOException {
+	return openImage( kind, fileName, totalBlocks, fileName + ".base" );
+    }
+
+    // "cow" keeps the blocks written since boot in fileName, over a
+    // read-only base image that many disks may share
+    public static DiskImage openImage( String kind, String fileName, 
+				       int totalBlocks, String baseName )
+	throws IOException {
+	if ( kind.equalsIgnoreCase( "cow" ) )
+	    return new SnapshotDiskImage( baseName, fileName, totalBlocks );
+	if ( kind.equalsIgnoreCase( "mapped" ) )
+	    return new MappedDiskImage( fileName, totalBlocks );
+	if ( kind.equalsIgnoreCase( "lazy" ) )
+	    return new LazyDiskImage( fileName, totalBlocks );
+	if ( kind.equalsIgnoreCase( "sparse" ) )
+	    return new SparseDiskImage( fileName, totalBlocks );
+	return new HeapDiskImage( fileName, totalBlocks );
+    }
+
+    // Translate a boot option into a latency profile: "hdd" is the track
+    // model, "ssd" and "nvme" are flat, and "none" costs nothing
+    public static LatencyModel latencyOf( String name ) {
+	if ( name.equalsIgnoreCase( "ssd" ) )
+	    return new FlatLatency( 100000L );  // 100us
+	if ( name.equalsIgnoreCase( "nvme" ) )
+	    return new FlatLatency( 10000L );   // 10us
+	if ( name.equalsIgnoreCase( "none" ) )
+	    return new FlatLatency( 0L );
+	return new TrackLatency( trackSize );
+    }
+
+    // Translate a boot option such as "sstf" into a scheduling policy
+    public static int policyOf( String name ) {
+	if ( name.equalsIgnoreCase( "fcfs" ) )
+	    return FCFS;
+	if ( name.equalsIgnoreCase( "sstf" ) )
+	    return SSTF;
+	if ( name.equalsIgnoreCase( "scan" ) )
+	    return SCAN;
+	return CLOOK;
     }
 
-    public synchronized boolean read( int blockId, byte buffer[] ) {
+    // The following four return null while the queue is full; the caller
+    // retries after the next disk interrupt frees a slot.
+    public synchronized DiskRequest read( int blockId, byte buffer[] ) {
 
-	if ( blockId < 0 || blockId > diskSize ) {
+	if ( blockId < 0 || blockId >= diskSize ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
-	    return false;
+	    return null;
 	}
-
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = READ;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+	return enqueue( new DiskRequest( READ, blockId, buffer ) );
     }
 
-    public synchronized boolean write( int blockId, byte buffer[] ) {
+    public synchronized DiskRequest write( int blockId, byte buffer[] ) {
 
-	if ( blockId < 0 || blockId > diskSize ) {
+	if ( blockId < 0 || blockId >= diskSize ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
-	    return false;
+	    return null;
 	}
+	return enqueue( new DiskRequest( WRITE, blockId, buffer ) );
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = WRITE;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+    public synchronized DiskRequest sync( ) {
+	return enqueue( new DiskRequest( SYNC, 0, null ) );
     }
 
-    public synchronized boolean sync( ) {
-	
-	if ( command == IDLE && readyBuffer == false ) {
-	    command = SYNC;
-	    notify( );
-	    // System.out.println( "DISK sync notified the disk" );
-	    return true;
-	} else
-	    return false;
+    public synchronized DiskRequest discard( int blockId ) {
+
+	if ( blockId < 0 || blockId >= diskSize ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for discard\n" );
+	    return null;
+	}
+	return enqueue( new DiskRequest( DISCARD, blockId, null ) );
+    }
+
+    // Snapshots need a "cow" image.  A snapshot or rollback is serviced
+    // once every request queued before it is done and before any queued
+    // after it.
+    public synchronized DiskRequest snapshot( String name ) {
+	return enqueue( new DiskRequest( SNAPSHOT, -1, name.getBytes( ) ) );
+    }
+
+    public synchronized DiskRequest rollback( String name ) {
+	return enqueue( new DiskRequest( ROLLBACK, -1, name.getBytes( ) ) );
+    }
+
+    // Names of the snapshots, oldest first, or null without a "cow" image
+    public synchronized String[] snapshots( ) {
+	if ( ( image instanceof SnapshotDiskImage ) == false )
+	    return null;
+	return ( ( SnapshotDiskImage )image ).snapshots( );
+    }
+
+    public synchronized DiskRequest readv( int blockIds[], byte buffers[][] ) {
+	return enqueue( READ, blockIds, buffers, null );
+    }
+
+    public synchronized DiskRequest writev( int blockIds[], byte buffers[][] ) {
+	return enqueue( WRITE, blockIds, buffers, null );
+    }
+
+    public synchronized DiskRequest writev( int blockIds[], byte buffers[][],
+					    int offsets[] ) {
+	return enqueue( WRITE, blockIds, buffers, offsets );
     }
 
-    public synchronized boolean testAndResetReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    readyBuffer = false;
-	    return true;
-	} else
-	    return false;
+    public boolean testReady( DiskRequest request ) {
+	return request.isReady( );
     }
 
-    public synchronized boolean testReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    return true;
-	} else
-	    return false;
+    public synchronized boolean isIdle( ) {
+	return queue.isEmpty( ) && inService == 0;
     }
 
-    private synchronized void waitCommand( ) {
-	while ( command == IDLE ) {
+    // True if n more requests fit in the queue.  A batch larger than the
+    // whole queue is let in once the queue has drained.
+    synchronized boolean hasRoom( int n ) {
+	return queue.size( ) + n <= queueSize || queue.isEmpty( );
+    }
+
+    private DiskRequest enqueue( DiskRequest request ) {
+	if ( hasRoom( 1 ) == false )
+	    return null;
+	queue.add( request );
+	notify( );
+	return request;
+    }
+
+    // Queue a whole batch or none of it; offsets, if not null, tell where
+    // in each buffer its block starts
+    private DiskRequest enqueue( int command, int blockIds[], 
+				 byte buffers[][], int offsets[] ) {
+	for ( int i = 0; i < blockIds.length; i++ ) {
+	    if ( blockIds[i] < 0 || blockIds[i] >= diskSize ) {
+		SysLib.cerr( "threadOS: a wrong blockId for " + 
+			     ( command == READ ? "read" : "write" ) + "\n" );
+		return null;
+	    }
+	}
+	if ( hasRoom( blockIds.length ) == false )
+	    return null;
+	DiskRequest parts[] = new DiskRequest[blockIds.length];
+	for ( int i = 0; i < blockIds.length; i++ ) {
+	    parts[i] = new DiskRequest( command, blockIds[i], buffers[i], 
+					( offsets == null ) ? 0 : offsets[i] );
+	    queue.add( parts[i] );
+	}
+	notify( );
+	return new DiskRequest( command, parts );
+    }
+
+    // Take the next command off the queue: the request the policy picks,
+    // merged with every queued request of the same kind for the blocks
+    // right before or after it, in block order
+    private synchronized Vector<DiskRequest> waitCommand( ) {
+	while ( queue.isEmpty( ) ) {
 	    try {
 		wait( );
 	    } catch ( InterruptedException e ) {
 		SysLib.cerr( e.toString( ) + "\n" );
 	    }
-	    readyBuffer = false;
 	}
+	DiskRequest request = nextRequest( );
+	queue.remove( request );
+	Vector<DiskRequest> run = new Vector<DiskRequest>( );
+	run.add( request );
+	inService = 1;
+	if ( isTransfer( request ) == false )
+	    return run;
+	boolean grown = true;
+	while ( grown && run.size( ) < maxRun ) {
+	    DiskRequest first = run.firstElement( );
+	    DiskRequest last = run.lastElement( );
+	    DiskRequest r = adjacent( request.command, last.blockId + 1 );
+	    if ( r != null )
+		run.add( r );
+	    else if ( ( r = adjacent( request.command, first.blockId - 1 ) ) != null )
+		run.insertElementAt( r, 0 );
+	    grown = ( r != null );
+	}
+	inService = run.size( );
+	return run;
+    }
+
+    // The earliest queued request for the given block, taken off the queue
+    // if it is of the given kind.  One of another kind stops the run, so
+    // requests for the same block are never serviced out of order.
+    private DiskRequest adjacent( int command, int blockId ) {
+	int horizon = horizon( );
+	for ( int i = 0; i < horizon; i++ ) {
+	    DiskRequest r = queue.elementAt( i );
+	    if ( isTransfer( r ) && r.blockId == blockId ) {
+		if ( r.command != command )
+		    return null;
+		queue.removeElementAt( i );
+		return r;
+	    }
+	}
+	return null;
+    }
+
+    // READ, WRITE and DISCARD work on a block and may be reordered
+    private static boolean isTransfer( DiskRequest r ) {
+	return r.command == READ || r.command == WRITE || r.command == DISCARD;
+    }
+
+    // Block requests queued past a snapshot or rollback wait for it
+    private int horizon( ) {
+	for ( int i = 0; i < queue.size( ); i++ ) {
+	    int command = queue.elementAt( i ).command;
+	    if ( command == SNAPSHOT || command == ROLLBACK )
+		return i;
+	}
+	return queue.size( );
+    }
+
+    // Pick the request to service next.  A SYNC is only serviced once it
+    // reaches the head of the queue, so it still flushes every write
+    // submitted before it; block requests are reordered around it.  A
+    // snapshot or rollback also holds back the requests queued after it.
+    private DiskRequest nextRequest( ) {
+	DiskRequest head = queue.firstElement( );
+	if ( policy == FCFS || isTransfer( head ) == false )
+	    return head;
+	int horizon = horizon( );
+
+	DiskRequest next = null;
+	switch ( policy ) {
+	case SSTF:
+	    int track = currentBlockId / trackSize;
+	    for ( int i = 0; i < horizon; i++ ) {
+		DiskRequest r = queue.elementAt( i );
+		if ( isTransfer( r ) && ( next == null ||
+		     Math.abs( r.blockId / trackSize - track ) <
+		     Math.abs( next.blockId / trackSize - track ) ) )
+		    next = r;
+	    }
+	    break;
+	case SCAN:
+	    next = nearest( ascending, horizon );
+	    if ( next == null ) {
+		// nothing left in this direction: run out to the edge
+		edgeBlockId = ascending ? diskSize - 1 : 0;
+		ascending = !ascending;
+		next = nearest( ascending, horizon );
+	    }
+	    break;
+	case CLOOK:
+	    next = nearest( true, horizon );
+	    if ( next == null ) {
+		// wrap around to the lowest pending block
+		for ( int i = 0; i < horizon; i++ ) {
+		    DiskRequest r = queue.elementAt( i );
+		    if ( isTransfer( r ) && 
+			 ( next == null || r.blockId < next.blockId ) )
+			next = r;
+		}
+	    }
+	    break;
+	}
+	return next;
     }
 
-    private void seek( ) {
-	int seekTime = transferTime + delayPerTrack 
-	    * Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
-	try {
-	    Thread.sleep( seekTime );
-	} catch( InterruptedException e ) {
-	    SysLib.cerr( e.toString( ) + "\n" );
+    // The closest block request at or beyond the head in the given
+    // direction, among the first horizon in the queue
+    private DiskRequest nearest( boolean up, int horizon ) {
+	DiskRequest next = null;
+	for ( int i = 0; i < horizon; i++ ) {
+	    DiskRequest r = queue.elementAt( i );
+	    if ( isTransfer( r ) == false || 
+		 ( up ? r.blockId < currentBlockId : 
+		   r.blockId > currentBlockId ) )
+		continue;
+	    if ( next == null || 
+		 ( up ? r.blockId < next.blockId : r.blockId > next.blockId ) )
+		next = r;
 	}
-	currentBlockId = targetBlockId;
+	return next;
+    }
+
+    // Move the head to the target block and transfer the given number of
+    // blocks from there, leaving the head on the last of them
+    private void seek( int targetBlockId, int blocks ) {
+	long seekTime;
+	synchronized ( this ) {
+	    if ( edgeBlockId >= 0 ) {
+		// a SCAN reversal travels to the edge before coming back
+		seekTime = latency.seekNanos( currentBlockId, edgeBlockId )
+		    + latency.seekNanos( edgeBlockId, targetBlockId );
+		edgeBlockId = -1;
+	    } else
+		seekTime = latency.seekNanos( currentBlockId, targetBlockId );
+	}
+	delay( seekTime + latency.transferNanos( blocks ) );
+	synchronized ( this ) {
+	    currentBlockId = targetBlockId + blocks - 1;
+	}
+    }
+
+    // Park the disk thread for the given time.  parkNanos may return
+    // early, so keep parking until the time is really up.
+    private void delay( long nanos ) {
+	long deadline = System.nanoTime( ) + nanos;
+	while ( nanos > 0 ) {
+	    LockSupport.parkNanos( nanos );
+	    nanos = deadline - System.nanoTime( );
+	}
+    }
+
+    // under the lock, so snapshots( ) never sees the layers half changed
+    private synchronized void changeSnapshots( DiskRequest request ) {
+	if ( ( image instanceof SnapshotDiskImage ) == false )
+	    return;
+	SnapshotDiskImage layers = ( SnapshotDiskImage )image;
+	String name = new String( request.buffer );
+	if ( request.command == SNAPSHOT )
+	    layers.snapshot( name );
+	else
+	    layers.rollback( name );
     }
 
-    private synchronized void finishCommand( ) {
-	command = IDLE;
-	readyBuffer = true;
-	SysLib.disk( ); // a disk interrupt
+    private synchronized void finishCommand( DiskRequest request ) {
+	SysLib.disk( request ); // a disk interrupt completes the request
+	inService--;
     }
 
     public void run ( ) {
 	
 	while ( true ) {
-	    waitCommand( );
-	    seek( );
-	    // System.out.println( "Disk: command = " + command );
-	    switch( command ) {
-	    case READ:
-		System.arraycopy( data, targetBlockId * blockSize, 
-				  buffer, 0, 
-				  blockSize );
-		break;
-	    case WRITE:
-		System.arraycopy( buffer, 0, 
-				  data, targetBlockId * blockSize, 
-				  blockSize );
-		break;
-	    case SYNC:
-		try {
-		    FileOutputStream ofstream = new FileOutputStream( "DISK" );
-		    ofstream.write( data );
-		    ofstream.close( );
-		} catch ( FileNotFoundException e ) {
-		    SysLib.cerr( e.toString( ) );
-		} catch ( IOException e ) {
-		    SysLib.cerr( e.toString( ) );
+	    Vector<DiskRequest> run = waitCommand( );
+	    DiskRequest first = run.firstElement( );
+	    if ( first.command == READ || first.command == WRITE )
+		seek( first.blockId, run.size( ) ); // one seek for the whole run
+	    for ( int i = 0; i < run.size( ); i++ ) {
+		DiskRequest request = run.elementAt( i );
+		// System.out.println( "Disk: command = " + request.command );
+		switch( request.command ) {
+		case READ:
+		    image.read( request.blockId, request.buffer );
+		    break;
+		case WRITE:
+		    image.write( request.blockId, request.buffer, 
+				 request.offset );
+		    break;
+		case DISCARD:
+		    image.discard( request.blockId ); // no head movement
+		    break;
+		case SYNC:
+		    image.sync( );
+		    // SysLib.cerr( "threadOS: DISK synchronized\n" );
+		    break;
+		case SNAPSHOT:
+		case ROLLBACK:
+		    changeSnapshots( request );
+		    break;
 		}
-		// SysLib.cerr( "threadOS: DISK synchronized\n" );
-		break;
 	    }
-	    finishCommand( );
+	    for ( int i = 0; i < run.size( ); i++ )
+		finishCommand( run.elementAt( i ) );
 	}
     }
 }
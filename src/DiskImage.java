@@ -0,0 +1,18 @@
+/**
+ * The host-side storage behind a Disk.  The disk thread is the only caller,
+ * so implementations need no locking of their own.
+ */
+public interface DiskImage {
+    // copy block blockId into buffer[0 .. Disk.blockSize)
+    void read( int blockId, byte buffer[] );
+
+    // copy buffer[offset .. offset + Disk.blockSize) into block blockId
+    void write( int blockId, byte buffer[], int offset );
+
+    // the block's contents are no longer needed: it may read back as
+    // zeros or as what it held before, and the image may drop its storage
+    void discard( int blockId );
+
+    // make every write so far durable in the host file
+    void sync( );
+}
@@ -0,0 +1,87 @@
+/**
+ * One command waiting in, or being serviced from, the Disk's request queue.
+ * The disk thread marks the request ready once its transfer is done, which
+ * wakes the thread waiting on this very request and nobody else.  A request
+ * may also group several others, e.g. the blocks of one vectored transfer
+ * or a sync of every member of a StripedDisk, and is ready once all of them
+ * are.
+ */
+public class DiskRequest {
+    public final int command;   // one of the commands in Disk
+    public final int blockId;   // target block, unused by SYNC and snapshots
+    public final byte[] buffer; // source or destination of the transfer, if
+                                // any, or the name of a snapshot
+    public final int offset;    // where in buffer a write's block starts
+    private DiskRequest group;  // the request grouping this one, or null
+    private int remaining;      // parts of a group not ready yet
+    private boolean ready;
+
+    public DiskRequest( int command, int blockId, byte buffer[] ) {
+	this( command, blockId, buffer, 0 );
+    }
+
+    public DiskRequest( int command, int blockId, byte buffer[], 
+			int offset ) {
+	this.command = command;
+	this.blockId = blockId;
+	this.buffer = buffer;
+	this.offset = offset;
+	ready = false;
+    }
+
+    // parts may already be queued, or even done, when they are grouped
+    public DiskRequest( int command, DiskRequest parts[] ) {
+	this( command, -1, null );
+	synchronized ( this ) {
+	    remaining = parts.length;
+	    for ( int i = 0; i < parts.length; i++ )
+		if ( parts[i].join( this ) == true )
+		    remaining--;
+	    ready = ( remaining == 0 );
+	}
+    }
+
+    // called by the disk interrupt once the command has been serviced
+    void finish( ) {
+	DiskRequest whole;
+	synchronized ( this ) {
+	    ready = true;
+	    notifyAll( );
+	    whole = group;
+	}
+	// the group's lock is taken only after this one's is let go, since
+	// the group holds its own while it joins its parts
+	if ( whole != null )
+	    whole.partDone( );
+    }
+
+    // returns true if this request is already done, so the group does not
+    // wait for it
+    private synchronized boolean join( DiskRequest whole ) {
+	if ( ready )
+	    return true;
+	group = whole;
+	return false;
+    }
+
+    private void partDone( ) {
+	synchronized ( this ) {
+	    if ( --remaining > 0 )
+		return;
+	}
+	finish( );
+    }
+
+    public synchronized boolean isReady( ) {
+	return ready;
+    }
+
+    // sleep until the disk has serviced this request
+    public synchronized void waitFor( ) {
+	while ( ready == false ) {
+	    try {
+		wait( );
+	    } catch ( InterruptedException e ) { }
+	}
+    }
+}
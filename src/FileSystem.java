@@ -1,4 +1,6 @@
 
+import java.util.Arrays;
+
 /*
  The main file system class that ties everything together and its how you declare a FileSystem
  (FileSystem fs )
@@ -9,14 +11,69 @@ public class FileSystem
     private final int SEEK_SET = 0;
     private final int SEEK_CUR = 1;
     private final int SEEK_END = 2;
+    // Read-ahead window, in blocks, when a file starts being read sequentially and at most
+    private final static int minReadAhead = 4;
+    private final static int maxReadAhead = 32;
+    // What read and write take each of an open file's scratch arrays for, one array of a use at once
+    private final static int scratchBlocks = 0;
+    private final static int scratchOffsets = 1;
+    private final static int scratchParts = 2;
+    private final static int scratchFresh = 3;
     private SuperBlock superblock;
     private Directory directory;
     private FileTable filetable;
+    private ReadAhead readAhead = new ReadAhead();
+    private int diskBlocks;
+    private int newBlockSize;
+    private boolean newExtents;
 
     public FileSystem(int diskBlocks)
+    {
+        this(diskBlocks, Disk.blockSize);
+    }
+
+    public FileSystem(int diskBlocks, int blockSize)
+    {
+        this(diskBlocks, blockSize, false);
+    }
+
+    /**
+     * Mount the file system on a disk of diskBlocks blocks
+     *
+     * @param diskBlocks the number of disk blocks
+     * @param blockSize  the file system block size if the disk has to be formatted
+     * @param extents    true if a disk that has to be formatted maps file blocks with extents
+     */
+    public FileSystem(int diskBlocks, int blockSize, boolean extents)
+    {
+        this.diskBlocks = diskBlocks;
+        newBlockSize = blockSize;
+        newExtents = extents;
+        mount();
+    }
+
+    /**
+     * Forget everything read from the disk and mount it again, after the disk was rolled back
+     * to a snapshot. No file may be open
+     */
+    public void remount()
+    {
+        readAhead.forgetAll();
+        mount();
+    }
+
+    /**
+     * @return true if no file is open
+     */
+    public boolean isIdle()
+    {
+        return filetable.fempty();
+    }
+
+    private void mount()
     {
         // create superblock, and format disk with 64 inodes in default
-        superblock = new SuperBlock(diskBlocks);
+        superblock = new SuperBlock(diskBlocks, newBlockSize, newExtents);
 
         // create directory, and register "/" in directory entry 0
         directory = new Directory(superblock.totalInodes);
@@ -63,14 +120,29 @@ public class FileSystem
     {
 
 
-        // Allocate the file in the File Table
-        // Check if it is in write mode or not, if it is then we need to deallocate the block at the File Table Entry
-        FileTableEntry retVal = filetable.falloc(filename, mode);
-        if (mode.equals("w") && !deallocAllBlocks(retVal))
+        superblock.journal.begin();
+        try
         {
-            return null;
+            // A new file changes the directory as well
+            boolean creating = !mode.equals("r") && !filename.equals("/") && directory.namei(filename) < 0;
+            // Allocate the file in the File Table
+            // Check if it is in write mode or not, if it is then we need to deallocate the block at the File Table Entry
+            FileTableEntry retVal = filetable.falloc(filename, mode);
+            if (mode.equals("w") && !deallocAllBlocks(retVal))
+            {
+                // Another entry still has the file, give back the one just taken
+                filetable.ffree(retVal);
+                return null;
+            }
+            if (creating && retVal != null)
+            {
+                writeDirectory();
+            }
+            return retVal;
+        } finally
+        {
+            superblock.journal.end();
         }
-        return retVal;
     }
 
 
@@ -90,10 +162,6 @@ public class FileSystem
 
     public int read(FileTableEntry ftEnt, byte[] buffer)
     {
-
-        int sizeLeftToRead = 0;
-        int trackDataRead = 0;
-        int size = buffer.length;
         // Could not read if the File Table Entry has mode write or append
         if (ftEnt.mode.equals("w") || ftEnt.mode.equals("a")) return -1;
         // Check for invalid passed in parameter
@@ -104,54 +172,110 @@ public class FileSystem
 
         synchronized (ftEnt)
         {
-            // Only stop when the seek pointer is still within the range
-            // And the buffer still have place to read data into
-            while (ftEnt.seekPtr < fsize(ftEnt) && buffer.length > 0)
+            // Never read past the end of the file
+            int size = Math.min(buffer.length, fsize(ftEnt) - ftEnt.seekPtr);
+            if (size <= 0)
             {
+                return 0;
+            }
+            // Look up every block the read touches, stopping at the first one that is missing
+            int firstBlock = ftEnt.seekPtr / BlockIO.blockSize();
+            int[] blockNums = ftEnt.scratch.ints(scratchBlocks, (ftEnt.seekPtr + size - 1) / BlockIO.blockSize() - firstBlock + 1);
+            ftEnt.inode.getBlockNumPointers(firstBlock, blockNums);
+            int blockCount = 0;
+            while (blockCount < blockNums.length && blockNums[blockCount] != -1)
+            {
+                blockCount++;
+            }
+            if (blockCount < blockNums.length)
+            {
+                blockNums = Arrays.copyOf(blockNums, blockCount);
+                size = Math.min(size, blockCount * BlockIO.blockSize() - ftEnt.seekPtr % BlockIO.blockSize());
+            }
+            if (blockCount == 0)
+            {
+                return 0;
+            }
+            // Blocks read ahead are cache hits once their reads are in, the rest are loaded from
+            // the disk in one trip
+            byte[][] blockData = ftEnt.scratch.buffers(scratchBlocks, blockCount);
+            boolean prefetched = false;
+            for (int i = 0; i < blockCount; i++)
+            {
+                prefetched |= readAhead.take(blockNums[i]);
+                blockData[i] = BlockPool.take();
+            }
+            BlockIO.read(blockNums, blockData);
+            boolean sequential = ftEnt.seekPtr == ftEnt.nextReadPtr;
 
-                // FIND BLOCK NUMBER
-                int blockNum = ftEnt.inode.getBlockNumPointer(ftEnt.seekPtr);
-                //
-                if (blockNum != -1)
-                {
-
-                    byte[] tempRead = new byte[Disk.blockSize];
-                    // Know the block location to read from, now load the data from disk
-                    SysLib.rawread(blockNum, buffer);
-
-                    // How far we go in to
-
-
-                    int dataGetInto = ftEnt.seekPtr % Disk.blockSize;
-                    int remainingBlocks = Disk.blockSize - dataGetInto;
-                    int remaining = fsize(ftEnt) - ftEnt.seekPtr;
-
-
-                    int smallerBetweenBlockandData = Math.min(remainingBlocks, size);
-                    // Check to see how much left we can read versus the size remaining
-                    sizeLeftToRead = Math.min(smallerBetweenBlockandData, remaining);
-
-
-                    System.arraycopy(tempRead, dataGetInto, buffer, trackDataRead, sizeLeftToRead);
-                    // Update the varaible to read into the byte array
-                    trackDataRead += sizeLeftToRead;
-                    // Update the Seek Pointer to read at new position
-                    ftEnt.seekPtr += sizeLeftToRead;
-                    // Update the size total.
-                    size -= sizeLeftToRead;
-                } else
-                {
-                    // Invalid block location
-                    break;
-                }
-
+            int trackDataRead = 0;
+            for (int i = 0; size > 0; i++)
+            {
+                // How far into the block we start, and how much of it we want
+                int dataGetInto = ftEnt.seekPtr % BlockIO.blockSize();
+                int sizeLeftToRead = Math.min(BlockIO.blockSize() - dataGetInto, size);
+                System.arraycopy(blockData[i], dataGetInto, buffer, trackDataRead, sizeLeftToRead);
+                // Update the varaible to read into the byte array
+                trackDataRead += sizeLeftToRead;
+                // Update the Seek Pointer to read at new position
+                ftEnt.seekPtr += sizeLeftToRead;
+                // Update the size total.
+                size -= sizeLeftToRead;
             }
+            BlockPool.give(blockData);
+            Arrays.fill(blockData, null);
+            readAhead(ftEnt, sequential, prefetched);
             return trackDataRead;
-
         }
-        // Default return value, if reached here, then no success
-
+    }
 
+    /**
+     * This method adjust the read-ahead window of the file after a read, and queue reads of the
+     * blocks the window now covers. The window opens when reads follow each other, doubles every
+     * time a read finds its blocks already prefetched, and halves on every read somewhere else
+     *
+     * @param ftEnt      The File Table Entry that was just read
+     * @param sequential True if the read started where the previous one stopped
+     * @param hit        True if the read used prefetched blocks
+     */
+    private void readAhead(FileTableEntry ftEnt, boolean sequential, boolean hit)
+    {
+        ftEnt.nextReadPtr = ftEnt.seekPtr;
+        if (!sequential)
+        {
+            ftEnt.readAheadWindow /= 2;
+            ftEnt.readAheadEnd = 0;
+            return;
+        }
+        if (ftEnt.readAheadWindow == 0)
+        {
+            ftEnt.readAheadWindow = minReadAhead;
+        } else if (hit)
+        {
+            ftEnt.readAheadWindow = Math.min(ftEnt.readAheadWindow * 2, maxReadAhead);
+        }
+        // The directory goes through the journal, and never gets here in pieces anyway
+        if (ftEnt.iNumber == 0)
+        {
+            return;
+        }
+        int nextBlock = (ftEnt.seekPtr + BlockIO.blockSize() - 1) / BlockIO.blockSize();
+        int first = Math.max(nextBlock, ftEnt.readAheadEnd);
+        int last = Math.min(nextBlock + ftEnt.readAheadWindow, (fsize(ftEnt) + BlockIO.blockSize() - 1) / BlockIO.blockSize());
+        if (first >= last)
+        {
+            return;
+        }
+        int[] blockNums = ftEnt.scratch.ints(scratchBlocks, last - first);
+        ftEnt.inode.getBlockNumPointers(first, blockNums);
+        for (int i = 0; i < blockNums.length; i++)
+        {
+            if (blockNums[i] == -1 || !readAhead.prefetch(blockNums[i]))
+            {
+                break;
+            }
+            ftEnt.readAheadEnd = first + i + 1;
+        }
     }
 
     /**
@@ -162,7 +286,19 @@ public class FileSystem
      */
     public void sync()
     {
-        FileTableEntry tempEntry = open("/", "w");
+        writeDirectory();
+        // Write back to the disk all the info, including everything still in the journal
+        superblock.journal.checkpoint();
+
+    }
+
+    /**
+     * This method write the directory into its file. The directory is always the same size, so
+     * it is rewritten in place instead of freeing and allocating its blocks every time
+     */
+    private void writeDirectory()
+    {
+        FileTableEntry tempEntry = open("/", "w+");
         // Get all the information from the directory first, including all files name and size
         byte[] temp = directory.directory2bytes();
         // Open the Table Entry that correspond to the directory
@@ -170,9 +306,6 @@ public class FileSystem
         // Write back to the disk all the info from the directory
         write(tempEntry, temp);
         close(tempEntry);
-        // Write back to the disk all the info
-        superblock.sync();
-
     }
 
 
@@ -199,7 +332,12 @@ public class FileSystem
             // table
             if (ftEnt.count <= 0)
             {
-                return filetable.ffree(ftEnt);
+                superblock.journal.begin();
+                boolean freed = filetable.ffree(ftEnt);
+                superblock.journal.end();
+                // Whatever the file changed goes into the journal now
+                superblock.journal.commit();
+                return freed;
             }
             return true;
         }
@@ -228,69 +366,161 @@ public class FileSystem
         {
             return -1;
         }
+        superblock.journal.begin();
+        try
+        {
+            return writeBlocks(ftEnt, buffer);
+        } finally
+        {
+            superblock.journal.end();
+        }
+    }
+
+    // The body of write, its metadata changes all go into the same journal transaction
+    private int writeBlocks(FileTableEntry ftEnt, byte[] buffer)
+    {
         synchronized (ftEnt)
         {
-            int offset = 0;
             int size = buffer.length;
-            // Continue writing when we still have length in the buffer
-            while (size > 0)
+            if (size == 0)
+            {
+                return 0;
+            }
+            // Make sure every block the write touches exists
+            int firstBlock = ftEnt.seekPtr / BlockIO.blockSize();
+            int[] blockNums = ftEnt.scratch.ints(scratchBlocks, (ftEnt.seekPtr + size - 1) / BlockIO.blockSize() - firstBlock + 1);
+            ftEnt.inode.getBlockNumPointers(firstBlock, blockNums);
+            boolean[] fresh = ftEnt.scratch.flags(scratchFresh, blockNums.length);
+            for (int i = 0; i < blockNums.length; i++)
             {
-                int blockPointerPointingTo = ftEnt.inode.getBlockNumPointer(ftEnt.seekPtr);
-                if (blockPointerPointingTo == -1)
+                if (blockNums[i] == -1)
                 {
-                    short availableFreeblock = (short) superblock.findFreeBlock();
-                    int result = ftEnt.inode.updateTheBlock(ftEnt.seekPtr, availableFreeblock);
-                    // Depending on the return value, we will have different ways to handle
-                    // When result = -3 , it means that the indirect block is unavaible albe
-                    // So we need to make use of it
-                    if (result == -3)
+                    blockNums[i] = allocateBlock(ftEnt, (firstBlock + i) * BlockIO.blockSize());
+                    if (blockNums[i] == -1)
                     {
-                        // Find the nextfree block to be the indirect block of the current iNode
-                        short nextFreeBlock = (short) superblock.findFreeBlock();
-                        // If we could update the block we are writing too, ERRORRRRRR
-
-                        if (!ftEnt.inode.updateTheFreeBlock(nextFreeBlock))
-                        {
-                            return -1;
-                        }
-                        // If We do not success update the block given the seek pointer
-                        if (ftEnt.inode.updateTheBlock(ftEnt.seekPtr, availableFreeblock) != 0)
-                        {
-                            return -1;
-                        }
+                        return -1;
                     }
-                    // When result is 0, it means that we success finding the right position
-                    if (result == 0)
+                    fresh[i] = true;
+                }
+            }
+
+            // Only the first and the last block can be partly written. Their old data is read,
+            // in one trip, unless the block was just allocated and has none; every other block
+            // is overwritten whole and never read
+            int head = ftEnt.seekPtr % BlockIO.blockSize();
+            int tail = (ftEnt.seekPtr + size) % BlockIO.blockSize();
+            // A block the write covers whole goes out from where it lies in the caller's buffer,
+            // only a partly written one is put together in a block of its own. The directory is
+            // logged, and the journal wants every block on its own
+            byte[][] blockData = ftEnt.scratch.buffers(scratchBlocks, blockNums.length);
+            int[] blockOffsets = ftEnt.scratch.ints(scratchOffsets, blockNums.length);
+            boolean[] staged = ftEnt.scratch.flags(scratchBlocks, blockNums.length);
+            int parts = 0;
+            for (int i = 0; i < blockNums.length; i++)
+            {
+                readAhead.forget(blockNums[i]);
+                boolean partial = (i == 0 && head != 0) || (i == blockNums.length - 1 && tail != 0);
+                if (!partial && ftEnt.iNumber != 0)
+                {
+                    blockData[i] = buffer;
+                    blockOffsets[i] = i * BlockIO.blockSize() - head;
+                    continue;
+                }
+                blockData[i] = BlockPool.take();
+                blockOffsets[i] = 0;
+                staged[i] = true;
+                if (partial)
+                {
+                    if (fresh[i])
                     {
-                        blockPointerPointingTo = availableFreeblock;
-                    }
-                    // This means that the direct pointer is no good
-                    if (result == -2 || result == -1)
+                        Arrays.fill(blockData[i], (byte) 0);
+                    } else
                     {
-                        return -1;
+                        parts++;
                     }
                 }
-
-                // Okay, now we need to get the data of the block the pointer is pointing to
-                byte[] tempData = new byte[Disk.blockSize];
-                SysLib.rawread(blockPointerPointingTo, tempData);
+            }
+            if (parts > 0)
+            {
+                // The first and the last block, or whichever of them needs it
+                int[] partNums = ftEnt.scratch.ints(scratchParts, parts);
+                byte[][] partData = ftEnt.scratch.buffers(scratchParts, parts);
+                int part = 0;
+                int last = blockNums.length - 1;
+                if (head != 0 && !fresh[0])
+                {
+                    partNums[part] = blockNums[0];
+                    partData[part++] = blockData[0];
+                }
+                if (part < parts && tail != 0 && !fresh[last])
+                {
+                    partNums[part] = blockNums[last];
+                    partData[part] = blockData[last];
+                }
+                BlockIO.read(partNums, partData);
+                Arrays.fill(partData, null);
+            }
+            int offset = 0;
+            for (int i = 0; size > 0; i++)
+            {
                 // Hmm, where in the block should we point
-                int position = ftEnt.seekPtr % Disk.blockSize;
-                int remaining = Disk.blockSize - position;
+                int position = ftEnt.seekPtr % BlockIO.blockSize();
+                int remaining = BlockIO.blockSize() - position;
                 // Remaming position that we can write, we do not want to write that is over the file
                 int availablePlace = Math.min(remaining, size);
-                System.arraycopy(buffer, offset, tempData, position, availablePlace);
-                SysLib.rawwrite(blockPointerPointingTo, tempData);
+                if (staged[i])
+                {
+                    System.arraycopy(buffer, offset, blockData[i], position, availablePlace);
+                }
                 // Update the seek pointer poingting to the next location
                 ftEnt.seekPtr += availablePlace;
                 offset += availablePlace;
                 // Decrement the size meaning that we have used this much space in writing
                 size -= availablePlace;
-                // If we have surpase the length of the inode, then we need to change it
-                if (ftEnt.seekPtr > ftEnt.inode.length)
+            }
+            // And put them all back in one trip as well, the directory is metadata and goes
+            // through the journal
+            if (ftEnt.iNumber == 0)
+            {
+                for (int i = 0; i < blockNums.length; i++)
+                {
+                    BlockIO.log(blockNums[i], blockData[i]);
+                }
+            } else
+            {
+                BlockIO.write(blockNums, blockData, blockOffsets);
+                // The new blocks must be on the disk before the inode that points at them
+                int freshCount = 0;
+                for (int i = 0; i < blockNums.length; i++)
+                {
+                    if (fresh[i])
+                    {
+                        freshCount++;
+                    }
+                }
+                int[] freshNums = ftEnt.scratch.ints(scratchFresh, freshCount);
+                for (int i = 0, next = 0; i < blockNums.length; i++)
                 {
-                    ftEnt.inode.length = ftEnt.seekPtr;
+                    if (fresh[i])
+                    {
+                        freshNums[next++] = blockNums[i];
+                    }
                 }
+                BlockIO.order(freshNums);
+            }
+            // The journal and the cache keep copies of their own
+            for (int i = 0; i < blockNums.length; i++)
+            {
+                if (staged[i])
+                {
+                    BlockPool.give(blockData[i]);
+                }
+                blockData[i] = null;
+            }
+            // If we have surpase the length of the inode, then we need to change it
+            if (ftEnt.seekPtr > ftEnt.inode.length)
+            {
+                ftEnt.inode.length = ftEnt.seekPtr;
             }
             // Update the inode
             ftEnt.inode.toDisk(ftEnt.iNumber);
@@ -300,6 +530,62 @@ public class FileSystem
     }
 
 
+    /**
+     * This method give the file a free block at the given position
+     *
+     * @param ftEnt    The File Table Entry of the file
+     * @param position The position in the file that the block will hold
+     * @return the block number, or -1 if the block could not be added to the inode
+     */
+    private int allocateBlock(FileTableEntry ftEnt, int position)
+    {
+        // With extents, the block after the file's last one keeps the file in one run
+        int availableFreeblock = superblock.findFreeBlock(ftEnt.inode.nextBlock());
+        if (availableFreeblock <= 0 || availableFreeblock >= superblock.totalBlocks)
+        {
+            // The disk is full
+            return -1;
+        }
+        int result = ftEnt.inode.updateTheBlock(position, availableFreeblock);
+        // Depending on the return value, we will have different ways to handle
+        // When result = -3 , it means that the indirect block is unavaible albe
+        // So we need to make use of it
+        if (result == -3)
+        {
+            // Find the nextfree block to be the indirect block of the current iNode
+            int nextFreeBlock = superblock.findFreeBlock();
+            if (nextFreeBlock == availableFreeblock + 1)
+            {
+                // The indirect block goes first on the disk, so the data after it stays in one run
+                nextFreeBlock = availableFreeblock;
+                availableFreeblock++;
+            }
+            // If we could update the block we are writing too, ERRORRRRRR
+            // Whatever was taken goes back, a block out of range never left the free list
+            if (nextFreeBlock <= 0 || nextFreeBlock >= superblock.totalBlocks
+                    || !ftEnt.inode.updateTheFreeBlock(nextFreeBlock))
+            {
+                if (nextFreeBlock > 0 && nextFreeBlock < superblock.totalBlocks)
+                {
+                    superblock.addFreeBlock(nextFreeBlock);
+                }
+                superblock.addFreeBlock(availableFreeblock);
+                return -1;
+            }
+            // Try again now that there is an indirect block
+            result = ftEnt.inode.updateTheBlock(position, availableFreeblock);
+        }
+        // When result is 0, it means that we success finding the right position
+        // Otherwise the direct pointer is no good, and the block goes back on the free list
+        if (result != 0)
+        {
+            superblock.addFreeBlock(availableFreeblock);
+            return -1;
+        }
+        return availableFreeblock;
+    }
+
+
     /**
      * This method deallocate all the block that is pointed to in the passed in File Table Entry
      *
@@ -313,11 +599,16 @@ public class FileSystem
         {
             return false;
         }
-        // Something is using it
-        if (ftEnt.count > 0)
+        // Something else is using it, falloc already counted this open
+        if (ftEnt.inode.count > 1)
         {
             return false;
         }
+        if (Inode.usesExtents())
+        {
+            deallocExtents(ftEnt);
+            return true;
+        }
         // Deallocate the indirect block
         byte[] data;
         int indirectStatus = ftEnt.inode.indirect;
@@ -325,10 +616,11 @@ public class FileSystem
         if (indirectStatus != -1)
         {
 
-            data = new byte[Disk.blockSize];
-            SysLib.rawread(indirectStatus, data);
+            data = BlockPool.take();
+            BlockIO.readMetadata(indirectStatus, data);
             // Invalidate it
             ftEnt.inode.indirect = -1;
+            ftEnt.inode.repin();
         } else
         {
             data = null;
@@ -336,15 +628,22 @@ public class FileSystem
         // Now we get the data of the indirect block
         if (data != null)
         {
-            byte offset = 0;
+            int offset = 0;
             // Get all the block that is pointed to by the indirect block
-            short blockID = SysLib.bytes2short(data, offset);
+            int blockID = Inode.getPointer(data, offset);
             // And make it free. LET IT GO LET IT GO CAN'T HOLD IT BACK ANYMORE
             while (blockID != -1)
             {
                 superblock.addFreeBlock(blockID);
-                blockID = SysLib.bytes2short(data, offset);
+                if (++offset == Inode.indirectSize())
+                {
+                    break;
+                }
+                blockID = Inode.getPointer(data, offset);
             }
+            // The indirect block itself is free now as well
+            superblock.addFreeBlock(indirectStatus);
+            BlockPool.give(data);
         }
 
         // Since each iNode can only have 11 pointer; Free all the block that is pointed to
@@ -362,12 +661,39 @@ public class FileSystem
         }
         }
 
+        ftEnt.inode.length = 0;
         ftEnt.inode.toDisk(ftEnt.iNumber);
         return true;
 
 
     }
 
+    /**
+     * deallocAllBlocks for a volume with extents, every block of every extent and the overflow
+     * blocks go back into the free block bitmap
+     *
+     * @param ftEnt The File Table Entry that need to be deallocate
+     */
+    private void deallocExtents(FileTableEntry ftEnt)
+    {
+        int[] extents = ftEnt.inode.extents();
+        int[] overflow = ftEnt.inode.overflowBlocks();
+        ftEnt.inode.clearExtents();
+        for (int i = 0; i < extents.length; i += 3)
+        {
+            for (int blockID = extents[i + 1]; blockID < extents[i + 1] + extents[i + 2]; blockID++)
+            {
+                superblock.addFreeBlock(blockID);
+            }
+        }
+        for (int i = 0; i < overflow.length; i++)
+        {
+            superblock.addFreeBlock(overflow[i]);
+        }
+        ftEnt.inode.length = 0;
+        ftEnt.inode.toDisk(ftEnt.iNumber);
+    }
+
 
     /**
      * - deletes the file specified by fileName
@@ -388,10 +714,33 @@ public class FileSystem
         // Then get the i number which in turn point to the block that
         // need to be delete
         // Need to make sure that the file is close and free
-        FileTableEntry corresponding = open(fn, "w");
-        short number = corresponding.iNumber;
-        boolean closeSuccess = close(corresponding);
-        boolean freeSuccess = directory.ifree(number);
+        superblock.journal.begin();
+        boolean closeSuccess;
+        boolean freeSuccess;
+        try
+        {
+            // Opening a missing file with "w" would create it
+            if (directory.namei(fn) < 0)
+            {
+                return false;
+            }
+            FileTableEntry corresponding = open(fn, "w");
+            if (corresponding == null)
+            {
+                return false;
+            }
+            short number = corresponding.iNumber;
+            closeSuccess = close(corresponding);
+            freeSuccess = directory.ifree(number);
+            if (freeSuccess)
+            {
+                writeDirectory();
+            }
+        } finally
+        {
+            superblock.journal.end();
+        }
+        superblock.journal.commit();
         if (closeSuccess && freeSuccess)
         {
             return true;
@@ -477,8 +826,38 @@ public class FileSystem
      */
     public boolean format(int files)
     {
+        return format(files, superblock.blockSize);
+    }
+
+    /**
+     * Format the disk for the given number of files and file system block size, keeping the
+     * block mapping of the volume, extents or pointers
+     *
+     * @param files     Number of files to be formated
+     * @param blockSize the file system block size, a multiple of Disk.blockSize
+     * @return a boolean variable that indicate the successful of format
+     */
+    public boolean format(int files, int blockSize)
+    {
+        return format(files, blockSize, superblock.version == SuperBlock.FORMAT_V3);
+    }
 
-        superblock.format(files);
+    /**
+     * Format the disk for the given number of files, using a new file system block size and
+     * block mapping. Larger blocks mean fewer, larger transfers for the same file data, and
+     * extents map a file written in one go with a handful of entries however large it gets
+     *
+     * @param files     Number of files to be formated
+     * @param blockSize the file system block size, a multiple of Disk.blockSize
+     * @param extents   true to map file blocks with extents instead of direct and indirect pointers
+     * @return a boolean variable that indicate the successful of format
+     */
+    public boolean format(int files, int blockSize, boolean extents)
+    {
+        if (files <= 0 || !superblock.format(files, blockSize, extents))
+        {
+            return false;
+        }
         // Create a new instance of Directory and FileTable
         directory = new Directory(superblock.totalInodes);
         filetable = new FileTable(directory);
@@ -105,6 +105,8 @@ public class FileTable
         // Write it back to the disk
         theINode.toDisk(iNumber);
         FileTableEntry theEntry = new FileTableEntry(theINode, iNumber, mode);
+        // Keep its inode and indirect block cached for as long as it is open
+        theINode.pin(iNumber);
         // Update the table
         table.addElement(theEntry);
         return theEntry;
@@ -142,6 +144,7 @@ public class FileTable
                 e.inode.flag = 3;
             }
             theCurrentNode.toDisk(e.iNumber);
+            theCurrentNode.unpin();
             // Notify the waiting other File Table Entry that the iNode has changed
             // So they might access it
             notify();
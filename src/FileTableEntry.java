@@ -4,6 +4,10 @@ public class FileTableEntry {  // Each table entry should have
     public final short iNumber;//    this inode number
     public int count;          //    a count to maintain #threads sharing this
     public final String mode;  //    "r", "w", "w+", or "a"
+    public int nextReadPtr;    //    where a sequential read would start
+    public int readAheadWindow;//    blocks to prefetch, 0 while reads look random
+    public int readAheadEnd;   //    first file block not prefetched yet
+    public final Scratch scratch = new Scratch(); // arrays read and write reuse
 
 
 
@@ -0,0 +1,23 @@
+/**
+ * A solid-state device: every block costs the same no matter where it is,
+ * so there is no seek.  Three quarters of the access time is the command
+ * overhead, paid once for a run of consecutive blocks, and the rest is
+ * paid for every block.  A zero access time gives an infinitely fast disk.
+ */
+public class FlatLatency implements LatencyModel {
+    private long commandTime;   // nanoseconds per transfer
+    private long blockTime;     // nanoseconds per block moved
+
+    public FlatLatency( long accessTime ) {
+	blockTime = accessTime / 4;
+	commandTime = accessTime - blockTime;
+    }
+
+    public long seekNanos( int fromBlockId, int toBlockId ) {
+	return 0;
+    }
+
+    public long transferNanos( int blocks ) {
+	return ( blocks > 0 ) ? commandTime + blockTime * blocks : 0;
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * A kernel thread that writes dirty cache pages back in the background,
+ * so that a cache miss seldom waits for a write-back and a sync finds
+ * little left to write.  Every period it checks the cache:
+ *
+ *   - at the high watermark of dirty pages it writes back the oldest of
+ *     them down to the low watermark right away; the cache also wakes it
+ *     as soon as the high watermark is reached,
+ *   - otherwise, while the disk is idle, it writes back the pages that
+ *     have been dirty for longer than the maximum age, and the oldest of
+ *     the rest down to the low watermark.
+ *
+ * Pages go out in block order, one vectored write per round.
+ */
+public class Flusher extends Thread {
+    private final long period = 100; // ms between checks
+    private Cache cache;
+    private BlockDevice disk;
+    private int highPages;           // pages dirty before flushing at once
+    private int lowPages;            // pages left dirty after flushing
+    private long maxAge;             // ms a page may stay dirty, while idle
+
+    public Flusher( Cache cache, BlockDevice disk, int highPercent,
+		    int lowPercent, long maxAge ) {
+	this.cache = cache;
+	this.disk = disk;
+	highPages = Math.max( 1, cache.size( ) * highPercent / 100 );
+	lowPages = Math.min( highPages, cache.size( ) * lowPercent / 100 );
+	this.maxAge = maxAge;
+    }
+
+    // Called by the cache with the count of dirty pages each time one
+    // more page gets dirty
+    public void dirtied( int dirtyPages ) {
+	if ( dirtyPages == highPages ) {
+	    synchronized ( this ) {
+		notify( );
+	    }
+	}
+    }
+
+    public void run( ) {
+	while ( true ) {
+	    synchronized ( this ) {
+		try {
+		    wait( period );
+		} catch ( InterruptedException e ) {
+		    SysLib.cerr( e.toString( ) + "\n" );
+		}
+	    }
+	    int dirty = cache.dirtyPages( );
+	    long now = System.currentTimeMillis( );
+	    if ( dirty >= highPages || ( dirty > 0 && disk.isIdle( ) ) )
+		cache.writeBack( dirty - lowPages, now - maxAge );
+	}
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * The original DISK image: the whole host file is loaded into a heap array
+ * at boot.  Writes are tracked in a dirty bitmap, so a sync only writes
+ * the blocks changed since the previous one back to the host file.
+ */
+public class HeapDiskImage implements DiskImage {
+    private String fileName;
+    private byte data[];
+    private BitSet dirty;      // blocks written since the last sync
+
+    public HeapDiskImage( String fileName, int diskSize ) {
+	this.fileName = fileName;
+	data = new byte[ diskSize * Disk.blockSize ];
+	dirty = new BitSet( diskSize );
+	try {
+	    FileInputStream ifstream = new FileInputStream( fileName );
+	    int readableSize = ( ifstream.available( ) < data.length ) ?
+		ifstream.available( ) : data.length; 
+	    ifstream.read( data, 0, readableSize );
+	    ifstream.close( );
+	} catch ( FileNotFoundException e ) {
+	    SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
+
+    public void read( int blockId, byte buffer[] ) {
+	System.arraycopy( data, blockId * Disk.blockSize, 
+			  buffer, 0, 
+			  Disk.blockSize );
+    }
+
+    public void write( int blockId, byte buffer[], int offset ) {
+	System.arraycopy( buffer, offset, 
+			  data, blockId * Disk.blockSize, 
+			  Disk.blockSize );
+	dirty.set( blockId );
+    }
+
+    // the file keeps its size, so there is nothing to give back
+    public void discard( int blockId ) {
+    }
+
+    // Write each run of consecutive dirty blocks with one positional write
+    public void sync( ) {
+	if ( dirty.isEmpty( ) )
+	    return;
+	try {
+	    RandomAccessFile file = new RandomAccessFile( fileName, "rw" );
+	    try {
+		FileChannel channel = file.getChannel( );
+		int first = dirty.nextSetBit( 0 );
+		while ( first >= 0 ) {
+		    int last = dirty.nextClearBit( first );
+		    ByteBuffer run = ByteBuffer.wrap( data, first * Disk.blockSize, 
+						      ( last - first ) * Disk.blockSize );
+		    long position = ( long )first * Disk.blockSize;
+		    while ( run.hasRemaining( ) )
+			position += channel.write( run, position );
+		    first = dirty.nextSetBit( last );
+		}
+	    } finally {
+		file.close( );
+	    }
+	    dirty.clear( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) );
+	}
+    }
+}
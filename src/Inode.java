@@ -1,13 +1,148 @@
+import java.util.Arrays;
+
 public class Inode
 {
-    private final static int iNodeSize = 32;
     private final static int directSize = 11;
+    // Extents kept in the inode itself, and the bytes of one extent: its first file block,
+    // its first disk block and its length in blocks
+    private final static int inlineExtents = 4;
+    private final static int extentSize = 12;
+
+    // On-disk layout, set by the SuperBlock for the format of the mounted volume.
+    // SuperBlock.FORMAT_V1 packs 16 inodes of 32 bytes with 2-byte block numbers,
+    // SuperBlock.FORMAT_V2 packs 8 inodes of 64 bytes with 4-byte block numbers,
+    // SuperBlock.FORMAT_V3 packs 8 inodes of 64 bytes that map runs of blocks with extents
+    private static int iNodeSize = 32;
+    private static int inodesPerBlock = 16;
+    private static int pointerSize = 2;
+    private static boolean extents = false;
 
     public int length;
     public short count;
     public short flag;
-    public short direct[] = new short[directSize];
-    public short indirect;
+    public int direct[] = new int[directSize];
+    // The indirect block, or with extents the first overflow block. Overflow blocks hold the
+    // extents after the inline ones, in file order, and each ends with the next one, -1 if none
+    public int indirect;
+    // With extents, the number of them and the inline ones, in file order
+    private int extentCount = 0;
+    private int extentStart[] = new int[inlineExtents];
+    private int extentBlock[] = new int[inlineExtents];
+    private int extentLength[] = new int[inlineExtents];
+    // The blocks pin kept in the cache, -1 if none
+    private int pinnedBlock = -1;
+    private int pinnedIndirect = -1;
+
+    /**
+     * Switch the inode and indirect block layout to the given on-disk format
+     *
+     * @param format SuperBlock.FORMAT_V1, SuperBlock.FORMAT_V2 or SuperBlock.FORMAT_V3
+     */
+    public static void setFormat(int format)
+    {
+        pointerSize = (format == SuperBlock.FORMAT_V1) ? 2 : 4;
+        iNodeSize = (format == SuperBlock.FORMAT_V1) ? 32 : 64;
+        inodesPerBlock = BlockIO.blockSize() / iNodeSize;
+        extents = format == SuperBlock.FORMAT_V3;
+    }
+
+    /**
+     * @return true if the mounted volume maps file blocks with extents instead of pointers
+     */
+    public static boolean usesExtents()
+    {
+        return extents;
+    }
+
+    /**
+     * @return how many extents fit in an overflow block, ahead of the link to the next one
+     */
+    public static int overflowSize()
+    {
+        return (BlockIO.blockSize() - 4) / extentSize;
+    }
+
+    // Where an overflow block keeps the next overflow block
+    private static int nextOffset()
+    {
+        return BlockIO.blockSize() - 4;
+    }
+
+    /**
+     * @param iNumber the inode number
+     * @return the block that holds the inode
+     */
+    public static int blockOf(int iNumber)
+    {
+        return 1 + iNumber / inodesPerBlock;
+    }
+
+    /**
+     * @param iNumber the inode number
+     * @return where the inode starts within its block
+     */
+    public static int offsetOf(int iNumber)
+    {
+        return (iNumber % inodesPerBlock) * iNodeSize;
+    }
+
+    /**
+     * @return how many inodes fit in one block
+     */
+    public static int inodesPerBlock()
+    {
+        return inodesPerBlock;
+    }
+
+    /**
+     * @param totalInodes the number of inodes on the volume
+     * @return how many blocks they take up
+     */
+    public static int blocksFor(int totalInodes)
+    {
+        return (totalInodes + inodesPerBlock - 1) / inodesPerBlock;
+    }
+
+    /**
+     * @return how many block numbers fit in the indirect block
+     */
+    public static int indirectSize()
+    {
+        return BlockIO.blockSize() / pointerSize;
+    }
+
+    /**
+     * Read the index-th block number of an indirect block
+     */
+    public static int getPointer(byte[] data, int index)
+    {
+        return readPointer(data, index * pointerSize);
+    }
+
+    /**
+     * Write the index-th block number of an indirect block
+     */
+    public static void setPointer(int blockNumber, byte[] data, int index)
+    {
+        writePointer(blockNumber, data, index * pointerSize);
+    }
+
+    private static int readPointer(byte[] data, int offset)
+    {
+        return (pointerSize == 2) ? SysLib.bytes2short(data, offset) : SysLib.bytes2int(data, offset);
+    }
+
+    private static void writePointer(int blockNumber, byte[] data, int offset)
+    {
+        if (pointerSize == 2)
+        {
+            SysLib.short2bytes((short) blockNumber, data, offset);
+        } else
+        {
+            SysLib.int2bytes(blockNumber, data, offset);
+        }
+    }
+
 //-----------------------------------------------------------------
 //Constructor methods below
 //First constructor function creates a default inode that intializes 
@@ -31,10 +166,10 @@ public class Inode
 
     public Inode(short iNumber)
     {
-        int blockNumber = 1 + iNumber / 16;
-        byte[] data = new byte[Disk.blockSize];
-        SysLib.rawread(blockNumber, data);
-        int offset = (iNumber % 16) * 32;
+        int blockNumber = blockOf(iNumber);
+        byte[] data = BlockPool.take();
+        BlockIO.readMetadata(blockNumber, data);
+        int offset = offsetOf(iNumber);
         length = SysLib.bytes2int(data, offset);
         offset += 4;
         count = SysLib.bytes2short(data, offset);
@@ -42,13 +177,33 @@ public class Inode
         flag = SysLib.bytes2short(data, offset);
         offset += 2;
 
+        if (extents)
+        {
+            // The extent count and 2 spare bytes, the inline extents, then the overflow block
+            extentCount = SysLib.bytes2short(data, offset);
+            offset += 4;
+            for (int i = 0; i < inlineExtents; i++)
+            {
+                extentStart[i] = SysLib.bytes2int(data, offset);
+                extentBlock[i] = SysLib.bytes2int(data, offset + 4);
+                extentLength[i] = SysLib.bytes2int(data, offset + 8);
+                offset += extentSize;
+            }
+            for (int i = 0; i < directSize; i++)
+            {
+                direct[i] = -1;
+            }
+            indirect = SysLib.bytes2int(data, offset);
+            BlockPool.give(data);
+            return;
+        }
         for (int i = 0; i < directSize; i++)
         {
-             short directBlock = SysLib.bytes2short(data, offset);
-            direct[i] = directBlock;
-            offset += 2;
+            direct[i] = readPointer(data, offset);
+            offset += pointerSize;
         }
-        indirect = SysLib.bytes2short(data, offset);
+        indirect = readPointer(data, offset);
+        BlockPool.give(data);
     }
 
 
@@ -62,7 +217,13 @@ public class Inode
      */
     public int getBlockNumPointer(int locationSeek)
     {
-        int offset = locationSeek / Disk.blockSize;
+        int offset = locationSeek / BlockIO.blockSize();
+        if (extents)
+        {
+            int[] blockNum = new int[1];
+            getExtentPointers(offset, blockNum);
+            return blockNum[0];
+        }
         // Still in the direct block of the iNode
         if (offset < 11)
         {
@@ -72,14 +233,56 @@ public class Inode
             return -1;
         } else
         {
-            byte[] tempData = new byte[Disk.blockSize];
-            // Get the number of blocks that the indirect block is pointing to
-            SysLib.rawread(indirect, tempData);
             // How far we are going to ?
             int difference = offset - 11;
-            // Since difference is in int, we need to transfer it back to bytes by multiplying 2
-            return SysLib.bytes2short(tempData, difference * 2);
+            if (difference >= indirectSize())
+            {
+                return -1;
+            }
+            byte[] tempData = BlockPool.take();
+            // Get the number of blocks that the indirect block is pointing to
+            BlockIO.readMetadata(indirect, tempData);
+            int blockNumber = getPointer(tempData, difference);
+            BlockPool.give(tempData);
+            return blockNumber;
+        }
+    }
+
+    /**
+     * This method look up the blocks behind a run of consecutive file blocks,
+     * reading the indirect block at most once for the whole run
+     *
+     * @param firstBlock the first file block of the run (seek pointer / block size)
+     * @param blockNums  filled with the block number of each file block, -1 if there is none
+     */
+    public void getBlockNumPointers(int firstBlock, int[] blockNums)
+    {
+        if (extents)
+        {
+            getExtentPointers(firstBlock, blockNums);
+            return;
         }
+        byte[] indirectData = null;
+        for (int i = 0; i < blockNums.length; i++)
+        {
+            int offset = firstBlock + i;
+            if (offset < directSize)
+            {
+                blockNums[i] = direct[offset];
+            } else if (indirect == -1 || offset - directSize >= indirectSize())
+            {
+                blockNums[i] = -1;
+            } else
+            {
+                if (indirectData == null)
+                {
+                    indirectData = BlockPool.take();
+                    BlockIO.readMetadata(indirect, indirectData);
+                }
+                blockNums[i] = getPointer(indirectData, offset - directSize);
+            }
+        }
+        BlockPool.give(indirectData);
     }
 
     /**
@@ -88,10 +291,14 @@ public class Inode
      * @param blockValue the block number
      * @return integer variable that indicate different status when we update the block
      */
-    public int updateTheBlock(int position, short blockValue)
+    public int updateTheBlock(int position, int blockValue)
     {
         // How far into the block that we got into
-        int directPointerIndex = position / Disk.blockSize;
+        int directPointerIndex = position / BlockIO.blockSize();
+        if (extents)
+        {
+            return updateTheExtent(directPointerIndex, blockValue);
+        }
         if (directPointerIndex < 11)
         {
             if (this.direct[directPointerIndex] >= 0)
@@ -120,24 +327,297 @@ public class Inode
         else
         {
             // We have an indirect location
-            byte[] tempData = new byte[Disk.blockSize];
+            byte[] tempData = BlockPool.take();
             // Read the data of the block in the indirect pointer
-            SysLib.rawread(indirect, tempData);
+            BlockIO.readMetadata(indirect, tempData);
             // How far into it should we go
             int offset = directPointerIndex - 11;
-            if (SysLib.bytes2short(tempData, offset * 2) > 0)
+            if (offset >= indirectSize() || getPointer(tempData, offset) > 0)
             {
-
+                BlockPool.give(tempData);
                 return -1;
             }
             else
             {
                 // Write the block number into the block at the indirect block
-                SysLib.short2bytes(blockValue, tempData, offset * 2);
-                SysLib.rawwrite(indirect, tempData);
+                setPointer(blockValue, tempData, offset);
+                BlockIO.log(indirect, tempData);
+                BlockPool.give(tempData);
+                return 0;
+            }
+        }
+    }
+
+    // getBlockNumPointers with extents, following the overflow blocks at most once. The file
+    // blocks asked for are consecutive, so the chain is only walked forward
+    private void getExtentPointers(int firstBlock, int[] blockNums)
+    {
+        byte[] overflow = null;
+        int index = 0;
+        int lastIndex = (extentCount - inlineExtents - 1) / overflowSize();
+        for (int i = 0; i < blockNums.length; i++)
+        {
+            int fileBlock = firstBlock + i;
+            blockNums[i] = inlineLookup(fileBlock);
+            if (blockNums[i] != -1 || extentCount <= inlineExtents)
+            {
+                continue;
+            }
+            if (overflow == null)
+            {
+                overflow = BlockPool.take();
+                BlockIO.readMetadata(indirect, overflow);
+            }
+            while (index < lastIndex && fileBlock >= overflowEnd(overflow, overflowCount(index)))
+            {
+                BlockIO.readMetadata(SysLib.bytes2int(overflow, nextOffset()), overflow);
+                index++;
+            }
+            blockNums[i] = extentLookup(fileBlock, overflow, overflowCount(index));
+        }
+        BlockPool.give(overflow);
+    }
+
+    // The disk block behind a file block if an inline extent maps it, -1 if none does
+    private int inlineLookup(int fileBlock)
+    {
+        for (int i = 0; i < Math.min(extentCount, inlineExtents); i++)
+        {
+            if (fileBlock >= extentStart[i] && fileBlock < extentStart[i] + extentLength[i])
+            {
+                return extentBlock[i] + fileBlock - extentStart[i];
+            }
+        }
+        return -1;
+    }
+
+    // The disk block behind a file block in the first count extents of an overflow block, -1 if
+    // there is none. They are in file order, so they are binary searched
+    private static int extentLookup(int fileBlock, byte[] overflow, int count)
+    {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high)
+        {
+            int middle = (low + high) / 2;
+            int start = SysLib.bytes2int(overflow, middle * extentSize);
+            if (fileBlock < start)
+            {
+                high = middle - 1;
+            } else if (fileBlock >= start + SysLib.bytes2int(overflow, middle * extentSize + 8))
+            {
+                low = middle + 1;
+            } else
+            {
+                return SysLib.bytes2int(overflow, middle * extentSize + 4) + fileBlock - start;
+            }
+        }
+        return -1;
+    }
+
+    // The file block after the last of the first count extents of an overflow block
+    private static int overflowEnd(byte[] overflow, int count)
+    {
+        int last = (count - 1) * extentSize;
+        return SysLib.bytes2int(overflow, last) + SysLib.bytes2int(overflow, last + 8);
+    }
+
+    // How many extents the index-th overflow block holds
+    private int overflowCount(int index)
+    {
+        return Math.max(0, Math.min(overflowSize(), extentCount - inlineExtents - index * overflowSize()));
+    }
+
+    // Read the index-th overflow block into data and return its block number, -1 if the chain
+    // is not that long
+    private int overflowBlock(int index, byte[] data)
+    {
+        int block = indirect;
+        for (int i = 0; block != -1; i++)
+        {
+            BlockIO.readMetadata(block, data);
+            if (i == index)
+            {
+                return block;
+            }
+            block = SysLib.bytes2int(data, nextOffset());
+        }
+        return -1;
+    }
+
+    /**
+     * updateTheBlock with extents. Files only grow at their end, so the block is either the
+     * next one of the last extent on the disk as well, and that extent grows, or it starts a
+     * new extent
+     *
+     * @param fileBlock  the file block, it has to be the one right after the last mapped one
+     * @param blockValue the block number
+     * @return 0 on success, -1 if the block is mapped already or the inode counts no more extents,
+     * -2 if blocks before it are not mapped, -3 if another overflow block is needed first
+     */
+    private int updateTheExtent(int fileBlock, int blockValue)
+    {
+        if (extentCount <= inlineExtents)
+        {
+            int last = extentCount - 1;
+            int end = (last < 0) ? 0 : extentStart[last] + extentLength[last];
+            if (fileBlock != end)
+            {
+                return (fileBlock < end) ? -1 : -2;
+            }
+            if (last >= 0 && extentBlock[last] + extentLength[last] == blockValue)
+            {
+                extentLength[last]++;
+                return 0;
+            }
+            if (extentCount < inlineExtents)
+            {
+                extentStart[extentCount] = fileBlock;
+                extentBlock[extentCount] = blockValue;
+                extentLength[extentCount] = 1;
+                extentCount++;
+                return 0;
+            }
+            if (indirect == -1)
+            {
+                return -3;
+            }
+        }
+        // The last extent is in the last overflow block in use, or the new one goes there
+        int inOverflow = extentCount - inlineExtents;
+        byte[] tempData = BlockPool.take();
+        int result = 0;
+        int lastBlock = -1;
+        if (inOverflow > 0)
+        {
+            lastBlock = overflowBlock((inOverflow - 1) / overflowSize(), tempData);
+            int last = ((inOverflow - 1) % overflowSize()) * extentSize;
+            int start = SysLib.bytes2int(tempData, last);
+            int end = start + SysLib.bytes2int(tempData, last + 8);
+            if (fileBlock != end)
+            {
+                result = (fileBlock < end) ? -1 : -2;
+            } else if (SysLib.bytes2int(tempData, last + 4) + end - start == blockValue)
+            {
+                SysLib.int2bytes(end - start + 1, tempData, last + 8);
+                BlockIO.log(lastBlock, tempData);
+                BlockPool.give(tempData);
                 return 0;
             }
         }
+        if (result == 0 && extentCount == Short.MAX_VALUE)
+        {
+            // The count is kept in 2 bytes
+            result = -1;
+        }
+        if (result == 0)
+        {
+            // The new extent starts the next overflow block once the last one is full
+            int slotBlock = lastBlock;
+            if (inOverflow % overflowSize() == 0)
+            {
+                slotBlock = overflowBlock(inOverflow / overflowSize(), tempData);
+            }
+            if (slotBlock == -1)
+            {
+                result = -3;
+            } else
+            {
+                int slot = (inOverflow % overflowSize()) * extentSize;
+                SysLib.int2bytes(fileBlock, tempData, slot);
+                SysLib.int2bytes(blockValue, tempData, slot + 4);
+                SysLib.int2bytes(1, tempData, slot + 8);
+                BlockIO.log(slotBlock, tempData);
+                extentCount++;
+            }
+        }
+        BlockPool.give(tempData);
+        return result;
+    }
+
+    /**
+     * @return the disk block right after the last block of the file, where the file is best
+     * continued, or -1 if it has none or the volume has no extents
+     */
+    public int nextBlock()
+    {
+        if (!extents || extentCount == 0)
+        {
+            return -1;
+        }
+        if (extentCount <= inlineExtents)
+        {
+            return extentBlock[extentCount - 1] + extentLength[extentCount - 1];
+        }
+        byte[] overflow = BlockPool.take();
+        int inOverflow = extentCount - inlineExtents;
+        overflowBlock((inOverflow - 1) / overflowSize(), overflow);
+        int last = ((inOverflow - 1) % overflowSize()) * extentSize;
+        int next = SysLib.bytes2int(overflow, last + 4) + SysLib.bytes2int(overflow, last + 8);
+        BlockPool.give(overflow);
+        return next;
+    }
+
+    /**
+     * @return every extent of the file in file order, three ints each: its first file block,
+     * its first disk block and its length in blocks
+     */
+    public int[] extents()
+    {
+        int[] all = new int[extentCount * 3];
+        for (int i = 0; i < Math.min(extentCount, inlineExtents); i++)
+        {
+            all[i * 3] = extentStart[i];
+            all[i * 3 + 1] = extentBlock[i];
+            all[i * 3 + 2] = extentLength[i];
+        }
+        if (extentCount > inlineExtents)
+        {
+            byte[] overflow = BlockPool.take();
+            BlockIO.readMetadata(indirect, overflow);
+            for (int i = inlineExtents; i < extentCount; i++)
+            {
+                int slot = (i - inlineExtents) % overflowSize();
+                if (slot == 0 && i > inlineExtents)
+                {
+                    BlockIO.readMetadata(SysLib.bytes2int(overflow, nextOffset()), overflow);
+                }
+                for (int j = 0; j < 3; j++)
+                {
+                    all[i * 3 + j] = SysLib.bytes2int(overflow, slot * extentSize + j * 4);
+                }
+            }
+            BlockPool.give(overflow);
+        }
+        return all;
+    }
+
+    /**
+     * @return the overflow blocks of the file in chain order, the first one is indirect
+     */
+    public int[] overflowBlocks()
+    {
+        int count = 0;
+        byte[] overflow = BlockPool.take();
+        int[] blocks = new int[0];
+        for (int block = indirect; block != -1; block = SysLib.bytes2int(overflow, nextOffset()))
+        {
+            blocks = Arrays.copyOf(blocks, count + 1);
+            blocks[count++] = block;
+            BlockIO.readMetadata(block, overflow);
+        }
+        BlockPool.give(overflow);
+        return blocks;
+    }
+
+    /**
+     * Forget every extent and the overflow blocks, the caller frees their blocks
+     */
+    public void clearExtents()
+    {
+        extentCount = 0;
+        indirect = -1;
+        repin();
     }
 
     /**s
@@ -152,10 +632,74 @@ public class Inode
         {
             return;
         }
-        // An inode only have 32 byte of info
-        byte[] blockInfo = new byte[32];
-        byte offset = 0;
-        // Write the length, starting at 0
+        // Which block holds this inode given there are inodesPerBlock inodes in 1 block
+        int pointerIndex = blockOf(iNumber);
+        byte[] tempData = BlockPool.take();
+        BlockIO.readMetadata(pointerIndex, tempData);
+        // Now write back the data into the disk given the location
+        toBytes(tempData, offsetOf(iNumber));
+        BlockIO.log(pointerIndex, tempData);
+        BlockPool.give(tempData);
+    }
+
+    /**
+     * Keep the block holding this inode and its indirect block in the cache while it is open
+     *
+     * @param iNumber the inode number
+     */
+    public void pin(short iNumber)
+    {
+        unpin();
+        pinnedBlock = blockOf(iNumber);
+        BlockIO.pin(pinnedBlock);
+        repin();
+    }
+
+    /**
+     * Let the cache evict the blocks pin kept there
+     */
+    public void unpin()
+    {
+        if (pinnedBlock != -1)
+        {
+            BlockIO.unpin(pinnedBlock);
+            pinnedBlock = -1;
+        }
+        if (pinnedIndirect != -1)
+        {
+            BlockIO.unpin(pinnedIndirect);
+            pinnedIndirect = -1;
+        }
+    }
+
+    /**
+     * Move the pin over to the indirect block, once the inode of a pinned file changes it
+     */
+    public void repin()
+    {
+        if (pinnedBlock == -1 || pinnedIndirect == indirect)
+        {
+            return;
+        }
+        if (pinnedIndirect != -1)
+        {
+            BlockIO.unpin(pinnedIndirect);
+        }
+        pinnedIndirect = indirect;
+        if (pinnedIndirect != -1)
+        {
+            BlockIO.pin(pinnedIndirect);
+        }
+    }
+
+    /**
+     * Lay this inode out in its iNodeSize bytes of an inode block
+     * @param blockInfo the inode block
+     * @param offset where in the block this inode goes
+     */
+    public void toBytes(byte[] blockInfo, int offset)
+    {
+        // Write the length, starting at the offset
         SysLib.int2bytes(length, blockInfo, offset);
         int offsetForInt = offset + 4;
         // Write the count
@@ -166,35 +710,42 @@ public class Inode
         SysLib.short2bytes(flag, blockInfo, offsetForInt);
         offsetForInt += 2;
 
+        if (extents)
+        {
+            SysLib.short2bytes((short) extentCount, blockInfo, offsetForInt);
+            SysLib.short2bytes((short) 0, blockInfo, offsetForInt + 2);
+            offsetForInt += 4;
+            for (int i = 0; i < inlineExtents; i++)
+            {
+                SysLib.int2bytes(extentStart[i], blockInfo, offsetForInt);
+                SysLib.int2bytes(extentBlock[i], blockInfo, offsetForInt + 4);
+                SysLib.int2bytes(extentLength[i], blockInfo, offsetForInt + 8);
+                offsetForInt += extentSize;
+            }
+            SysLib.int2bytes(indirect, blockInfo, offsetForInt);
+            return;
+        }
+
         // Now write back the block number that the direct pointer point to
         int pointerIndex;
         for (pointerIndex = 0; pointerIndex < directSize; pointerIndex++)
         {
-            SysLib.short2bytes(direct[pointerIndex], blockInfo, offsetForInt);
-            offsetForInt += 2;
+            writePointer(direct[pointerIndex], blockInfo, offsetForInt);
+            offsetForInt += pointerSize;
         }
         // Write back the block number for the indirect pointer
-        SysLib.short2bytes(this.indirect, blockInfo, offsetForInt);
-
-
-        // Which Inode are we at given there are 16 inodes in 1 block
-        pointerIndex = 1 + iNumber / 16;
-        byte[] tempData = new byte[Disk.blockSize];
-        SysLib.rawread(pointerIndex, tempData);
-        offsetForInt = iNumber % 16 * iNodeSize;
-        // Now write back the data into the disk given the location
-        System.arraycopy(blockInfo, 0, tempData, offsetForInt, iNodeSize);
-        SysLib.rawwrite(pointerIndex, tempData);
+        writePointer(this.indirect, blockInfo, offsetForInt);
     }
 
     /**
-     * This method take in the block number and update it by writing it back to the disk
+     * This method take in the block number and update it by writing it back to the disk.
+     * With extents, a file that has an overflow block already gets this one chained after it
      * @param blockValue the block number that we need to update for the indirect variable
      * @return a boolean variable indicating if we succeed or not
      */
-    public boolean updateTheFreeBlock(short blockValue)
+    public boolean updateTheFreeBlock(int blockValue)
     {
-        for (int i = 0; i < directSize; i++)
+        for (int i = 0; i < directSize && !extents; i++)
         {
             // If one of the direct block is invalid then, we should not change it
 
@@ -203,6 +754,10 @@ public class Inode
                 return false;
             }
         }
+        if (extents && indirect != -1)
+        {
+            return linkOverflow(blockValue);
+        }
         // The indirect block is already in use already, do not need to update
         if (indirect != -1)
         {
@@ -211,20 +766,50 @@ public class Inode
         {
             // update it and get the data from the passed in paramter
             indirect = blockValue;
-            byte[] tempData = new byte[Disk.blockSize];
+            repin();
+            byte[] tempData = BlockPool.take();
 
             // Get the default data into the new direct block number by setting
             // everything to default which is -1
-            for (int positionToWrite = 0; positionToWrite < Disk.blockSize/2; ++positionToWrite)
+            for (int positionToWrite = 0; positionToWrite < indirectSize(); ++positionToWrite)
             {
-                SysLib.short2bytes((short)-1, tempData, positionToWrite * 2);
+                setPointer(-1, tempData, positionToWrite);
             }
             // Write it to the disk
-            SysLib.rawwrite(blockValue, tempData);
+            BlockIO.log(blockValue, tempData);
+            BlockPool.give(tempData);
             return true;
         }
 
 
 
     }
+
+    // Chain a new overflow block after the last one, if every overflow block is full
+    private boolean linkOverflow(int blockValue)
+    {
+        byte[] tempData = BlockPool.take();
+        int chained;
+        int last = indirect;
+        BlockIO.readMetadata(last, tempData);
+        for (chained = 1; SysLib.bytes2int(tempData, nextOffset()) != -1; chained++)
+        {
+            last = SysLib.bytes2int(tempData, nextOffset());
+            BlockIO.readMetadata(last, tempData);
+        }
+        if (chained * overflowSize() > extentCount - inlineExtents)
+        {
+            BlockPool.give(tempData);
+            return false;
+        }
+        SysLib.int2bytes(blockValue, tempData, nextOffset());
+        BlockIO.log(last, tempData);
+        for (int positionToWrite = 0; positionToWrite < indirectSize(); ++positionToWrite)
+        {
+            setPointer(-1, tempData, positionToWrite);
+        }
+        BlockIO.log(blockValue, tempData);
+        BlockPool.give(tempData);
+        return true;
+    }
 }
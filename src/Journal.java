@@ -0,0 +1,589 @@
+import java.util.BitSet;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/*
+ The write-ahead log for file system metadata. New images of metadata blocks are kept in memory
+ and appended to the journal region as one transaction, a descriptor block, the images and a
+ commit block. They only go to their home blocks at a checkpoint, and mounting replays every
+ committed transaction that was not checkpointed yet. The journal region is read and written
+ around the block cache
+ */
+
+public class Journal
+{
+    private final static int MAGIC = 0x4A524E4C;  // "JRNL"
+    private final static int DESCRIPTOR = 1;
+    private final static int COMMIT = 2;
+
+    private SuperBlock superblock;
+    private int start;        // the journal header block
+    private int end;          // first block past the journal
+    private int head;         // where the next transaction goes
+    private int sequence;     // sequence number of the next transaction
+
+    // Newest image of every block logged since the last checkpoint
+    private Hashtable<Integer, byte[]> pending = new Hashtable<Integer, byte[]>();
+    // Image of every block as of the last commit, and the free list head then.
+    // A checkpoint writes these, so the running transaction never reaches home blocks
+    private Hashtable<Integer, byte[]> committed = new Hashtable<Integer, byte[]>();
+    private int committedFreeList;
+    // The running transaction
+    private Vector<Integer> logged = new Vector<Integer>();
+    private Vector<Integer> revoked = new Vector<Integer>();
+    private Vector<Integer> discarded = new Vector<Integer>();
+    // Newly allocated file data blocks written into the cache since the last commit
+    private BitSet ordered = new BitSet();
+    // Blocks the running transaction freed, they are free once it commits
+    private Vector<Integer> held = new Vector<Integer>();
+    // Blocks off the free list set aside for allocation, as they are now and as of the last commit
+    private Vector<Integer> reserve = new Vector<Integer>();
+    private int[] committedReserve = new int[0];
+    private int taken;        // blocks handed out of the reserve since the last commit
+    private int handles;      // file system calls in the middle of a change
+
+    /**
+     * @param superblock the superblock of the volume, it describes the journal region
+     */
+    public Journal(SuperBlock superblock)
+    {
+        this.superblock = superblock;
+        start = superblock.journalStart;
+        end = start + superblock.journalBlocks;
+    }
+
+    /**
+     * @return false if the volume was formatted without a journal, then metadata is written in place
+     */
+    public boolean isEnabled()
+    {
+        return end > start;
+    }
+
+    /**
+     * @param totalBlocks the number of file system blocks on the volume
+     * @return how many blocks format sets aside for the journal
+     */
+    public static int sizeFor(int totalBlocks)
+    {
+        return Math.max(16, Math.min(1024, totalBlocks / 32));
+    }
+
+    /**
+     * Start an empty journal, used right after format
+     */
+    public synchronized void reset()
+    {
+        pending.clear();
+        committed.clear();
+        logged.clear();
+        revoked.clear();
+        discarded.clear();
+        ordered.clear();
+        held.clear();
+        reserve.clear();
+        committedReserve = new int[0];
+        taken = 0;
+        committedFreeList = superblock.freeList;
+        sequence = 1;
+        writeHeader();
+    }
+
+    /**
+     * Replay the committed transactions that were not checkpointed, then start an empty journal
+     * after them
+     */
+    public synchronized void recover()
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+        byte[] header = new byte[BlockIO.blockSize()];
+        BlockIO.readDirect(start, header);
+        if (SysLib.bytes2int(header, 0) != MAGIC)
+        {
+            reset();
+            return;
+        }
+        sequence = SysLib.bytes2int(header, 4);
+        // The free list head and reserve as of the last checkpoint, a header written before
+        // they were kept there has 0 for the head
+        int freeList = SysLib.bytes2int(header, 8) > 0 ? SysLib.bytes2int(header, 8) : -1;
+        int[] setAside = readReserve(header, 12);
+        // Find the transactions that made it to the journal in one piece
+        Vector<int[]> images = new Vector<int[]>();    // {sequence, block, journal block}
+        Hashtable<Integer, Integer> revokedAt = new Hashtable<Integer, Integer>();
+        int position = start + 1;
+        byte[] descriptor = new byte[BlockIO.blockSize()];
+        byte[] commit = new byte[BlockIO.blockSize()];
+        while (position + 1 < end)
+        {
+            BlockIO.readDirect(position, descriptor);
+            if (!isRecord(descriptor, DESCRIPTOR, sequence))
+            {
+                break;
+            }
+            int imageCount = SysLib.bytes2int(descriptor, 12);
+            int revokeCount = SysLib.bytes2int(descriptor, 16);
+            if (imageCount < 0 || revokeCount < 0 || position + imageCount + 1 >= end)
+            {
+                break;
+            }
+            BlockIO.readDirect(position + imageCount + 1, commit);
+            if (!isRecord(commit, COMMIT, sequence))
+            {
+                break;
+            }
+            for (int i = 0; i < imageCount; i++)
+            {
+                images.addElement(new int[]{sequence, SysLib.bytes2int(descriptor, 20 + i * 4), position + 1 + i});
+            }
+            for (int i = 0; i < revokeCount; i++)
+            {
+                revokedAt.put(SysLib.bytes2int(descriptor, 20 + (imageCount + i) * 4), sequence);
+            }
+            freeList = SysLib.bytes2int(commit, 12);
+            setAside = readReserve(commit, 16);
+            position += imageCount + 2;
+            sequence++;
+        }
+        // Copy every image home, unless a later transaction revoked its block
+        byte[] image = new byte[BlockIO.blockSize()];
+        for (int i = 0; i < images.size(); i++)
+        {
+            int[] entry = images.elementAt(i);
+            Integer revokedIn = revokedAt.get(entry[1]);
+            if (revokedIn != null && revokedIn > entry[0])
+            {
+                continue;
+            }
+            BlockIO.readDirect(entry[2], image);
+            BlockIO.writeMetadata(entry[1], image);
+        }
+        BlockIO.flush();
+        if (freeList != -1)
+        {
+            superblock.freeList = freeList;
+            superblock.sync();
+        }
+        committedFreeList = superblock.freeList;
+        // Whatever a lost transaction took of the reserve is free again
+        committedReserve = setAside;
+        reserve.clear();
+        for (int i = 0; i < setAside.length; i++)
+        {
+            reserve.addElement(setAside[i]);
+        }
+        pending.clear();
+        committed.clear();
+        logged.clear();
+        revoked.clear();
+        discarded.clear();
+        ordered.clear();
+        held.clear();
+        taken = 0;
+        writeHeader();
+    }
+
+    /**
+     * A file system call is about to change metadata, keep its changes in one transaction
+     */
+    public synchronized void begin()
+    {
+        handles++;
+    }
+
+    /**
+     * A file system call is done changing metadata
+     */
+    public synchronized void end()
+    {
+        if (handles > 0)
+        {
+            handles--;
+        }
+    }
+
+    /**
+     * Log the new image of a metadata block
+     *
+     * @param blockId the block
+     * @param data    its new contents, copied
+     */
+    public synchronized void write(int blockId, byte[] data)
+    {
+        Integer id = blockId;
+        if (!logged.contains(id) && isFull(1))
+        {
+            // A single change too big for one transaction gets split
+            commitNow();
+        }
+        revoked.removeElement(id);
+        if (!logged.contains(id))
+        {
+            logged.addElement(id);
+        }
+        pending.put(id, data.clone());
+    }
+
+    /**
+     * The block is becoming file data, forget any image of it that was logged. If one was
+     * committed, the block is revoked, so that the older image in the journal is not replayed
+     * over the data
+     *
+     * @param blockId the block
+     */
+    public synchronized void revoke(int blockId)
+    {
+        Integer id = blockId;
+        pending.remove(id);
+        logged.removeElement(id);
+        discarded.removeElement(id);
+        if (committed.remove(id) == null)
+        {
+            // Nothing of it in the journal since the last checkpoint
+            return;
+        }
+        if (isFull(1))
+        {
+            commitNow();
+        }
+        revoked.addElement(id);
+    }
+
+    /**
+     * Newly allocated file data blocks were written into the cache, they go to the disk before the
+     * next commit, so a block reaches the disk before the metadata that first points at it.
+     * Nothing else the cache holds back is written for a commit: an overwrite of a block a file
+     * already had goes out when the cache gets to it, as it would between two commits
+     *
+     * @param blockIds the blocks
+     */
+    public synchronized void order(int[] blockIds)
+    {
+        for (int i = 0; i < blockIds.length; i++)
+        {
+            ordered.set(blockIds[i]);
+        }
+    }
+
+    /**
+     * Hand out a block for the running transaction from the reserve, committing first to get
+     * another reserve if it has run out.
+     * On a free list volume the link to the next free block is kept in each free block, where a
+     * data write of the running transaction would overwrite it before the transaction that took
+     * the block has committed. So each commit sets aside a reserve of blocks off the free list and
+     * records it, and mounting takes back the reserve of the last commit: the blocks a lost
+     * transaction took are free again, and the free list never runs through them
+     *
+     * @return the block, or the free list head past the last block if there is none left
+     */
+    public synchronized int allocate()
+    {
+        if (reserve.isEmpty())
+        {
+            commitNow();
+        }
+        if (reserve.isEmpty())
+        {
+            return superblock.freeList;
+        }
+        taken++;
+        return reserve.remove(0);
+    }
+
+    /**
+     * The block is being freed, it is free once the running transaction has committed. Until
+     * then it still belongs to its old file and is not handed out again
+     *
+     * @param blockId the block
+     */
+    public synchronized void free(int blockId)
+    {
+        Integer id = blockId;
+        if (held.contains(id))
+        {
+            return;
+        }
+        if (isFull(1))
+        {
+            commitNow();
+        }
+        held.addElement(id);
+    }
+
+    /**
+     * The block is being freed, discard it once the running transaction has committed. The
+     * journal blocks a checkpoint empties are discarded right after it
+     *
+     * @param blockId the block
+     */
+    public synchronized void discard(int blockId)
+    {
+        Integer id = blockId;
+        if (!discarded.contains(id))
+        {
+            discarded.addElement(id);
+        }
+    }
+
+    /**
+     * Fill the buffer with the newest image of the block, if it has been logged but not checkpointed
+     *
+     * @param blockId the block
+     * @param buffer  where the image goes
+     * @return false if the home block is up to date
+     */
+    public synchronized boolean read(int blockId, byte[] buffer)
+    {
+        byte[] image = pending.get(blockId);
+        if (image == null)
+        {
+            return false;
+        }
+        System.arraycopy(image, 0, buffer, 0, image.length);
+        return true;
+    }
+
+    /**
+     * Append the running transaction to the journal, unless a file system call is still in the
+     * middle of it. Then it goes out with a later commit
+     */
+    public synchronized void commit()
+    {
+        if (handles == 0)
+        {
+            commitNow();
+        }
+    }
+
+    /**
+     * Commit, then copy every committed image to its home block and empty the journal, as a
+     * commit that does not fit does first. The home blocks written are flushed out of the cache
+     * before their transactions are let go
+     */
+    public synchronized void checkpoint()
+    {
+        if (!isEnabled())
+        {
+            superblock.sync();
+            return;
+        }
+        commit();
+        writeHome();
+    }
+
+    // Copy the committed images and free list head home, then start the journal over
+    private void writeHome()
+    {
+        if (!committed.isEmpty())
+        {
+            int[] blockIds = new int[committed.size()];
+            byte[][] images = new byte[committed.size()][];
+            int i = 0;
+            for (Enumeration<Integer> e = committed.keys(); e.hasMoreElements(); i++)
+            {
+                blockIds[i] = e.nextElement();
+                images[i] = committed.get(blockIds[i]);
+                // Still needed by reads unless the running transaction has a newer image
+                if (pending.get(blockIds[i]) == images[i])
+                {
+                    pending.remove(blockIds[i]);
+                }
+            }
+            BlockIO.writeMetadata(blockIds, images);
+            BlockIO.flush(blockIds);
+            committed.clear();
+        }
+        superblock.sync(committedFreeList);
+        int used = head;
+        writeHeader();
+        for (int block = start + 1; block < used; block++)
+        {
+            BlockIO.discardNow(block);
+        }
+    }
+
+    // Write the running transaction out, a checkpoint first if it does not fit
+    private void commitNow()
+    {
+        boolean refill = reserve.isEmpty() && reserveSize() > 0 && superblock.freeList > 0
+                && superblock.freeList < superblock.totalBlocks;
+        if (logged.isEmpty() && revoked.isEmpty() && held.isEmpty() && taken == 0 && !refill)
+        {
+            sendDiscards();
+            return;
+        }
+        // File data the transaction points at goes out first
+        BlockIO.flush(orderedBlocks());
+        releaseHeld();
+        if (head + logged.size() + 2 > end)
+        {
+            writeHome();
+            // Everything before is home now, there is nothing older to revoke
+            revoked.clear();
+        }
+        int count = logged.size();
+        int[] blockIds = new int[count + 1];
+        byte[][] blocks = new byte[count + 1][];
+        byte[] descriptor = record(DESCRIPTOR);
+        SysLib.int2bytes(count, descriptor, 12);
+        SysLib.int2bytes(revoked.size(), descriptor, 16);
+        blockIds[0] = head;
+        blocks[0] = descriptor;
+        for (int i = 0; i < count; i++)
+        {
+            SysLib.int2bytes(logged.elementAt(i), descriptor, 20 + i * 4);
+            blockIds[i + 1] = head + 1 + i;
+            blocks[i + 1] = pending.get(logged.elementAt(i));
+        }
+        for (int i = 0; i < revoked.size(); i++)
+        {
+            SysLib.int2bytes(revoked.elementAt(i), descriptor, 20 + (count + i) * 4);
+        }
+        BlockIO.writeDirect(blockIds, blocks);
+        // The commit block goes out only after the rest of the transaction
+        byte[] commit = record(COMMIT);
+        int[] setAside = new int[reserve.size()];
+        for (int i = 0; i < setAside.length; i++)
+        {
+            setAside[i] = reserve.elementAt(i);
+        }
+        SysLib.int2bytes(superblock.freeList, commit, 12);
+        writeReserve(commit, 16, setAside);
+        BlockIO.writeDirect(head + count + 1, commit);
+        head += count + 2;
+        sequence++;
+        for (int i = 0; i < count; i++)
+        {
+            committed.put(logged.elementAt(i), blocks[i + 1]);
+        }
+        committedFreeList = superblock.freeList;
+        committedReserve = setAside;
+        taken = 0;
+        logged.clear();
+        revoked.clear();
+        sendDiscards();
+    }
+
+    // The blocks the running transaction freed go into the reserve while it has room, and in the
+    // bitmap or on the free list in this transaction otherwise. Then the reserve takes blocks off
+    // the free list until it is full
+    private void releaseHeld()
+    {
+        while (!held.isEmpty())
+        {
+            int block = held.remove(0);
+            if (reserve.size() < reserveSize())
+            {
+                reserve.addElement(block);
+            } else
+            {
+                superblock.release(block);
+            }
+        }
+        while (reserve.size() < reserveSize() && superblock.freeList > 0
+                && superblock.freeList < superblock.totalBlocks)
+        {
+            reserve.addElement(superblock.takeFreeListHead());
+        }
+    }
+
+    // How many blocks the reserve holds, as many as a commit block can list. A bitmap volume
+    // needs none, its free blocks hold nothing a data write could overwrite
+    private int reserveSize()
+    {
+        return superblock.bitmapBlocks > 0 ? 0 : (BlockIO.blockSize() - 20) / 4;
+    }
+
+    // A reserve in a journal record, its length then its blocks
+    private static void writeReserve(byte[] block, int offset, int[] blocks)
+    {
+        SysLib.int2bytes(blocks.length, block, offset);
+        for (int i = 0; i < blocks.length; i++)
+        {
+            SysLib.int2bytes(blocks[i], block, offset + 4 + i * 4);
+        }
+    }
+
+    // The reserve in a journal record, none if it does not make sense
+    private int[] readReserve(byte[] block, int offset)
+    {
+        int count = SysLib.bytes2int(block, offset);
+        if (count < 0 || offset + 4 + count * 4 > block.length)
+        {
+            return new int[0];
+        }
+        int[] blocks = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            blocks[i] = SysLib.bytes2int(block, offset + 4 + i * 4);
+            if (blocks[i] <= 0 || blocks[i] >= superblock.totalBlocks)
+            {
+                return new int[0];
+            }
+        }
+        return blocks;
+    }
+
+    // The newly allocated file data blocks written since the last commit, which then has none
+    private int[] orderedBlocks()
+    {
+        int[] blockIds = new int[ordered.cardinality()];
+        for (int i = 0, block = ordered.nextSetBit(0); block >= 0; block = ordered.nextSetBit(block + 1))
+        {
+            blockIds[i++] = block;
+        }
+        ordered.clear();
+        return blockIds;
+    }
+
+    // The blocks freed by the transactions committed so far hold nothing anymore
+    private void sendDiscards()
+    {
+        for (int i = 0; i < discarded.size(); i++)
+        {
+            BlockIO.discardNow(discarded.elementAt(i));
+        }
+        discarded.clear();
+    }
+
+    // Would the running transaction outgrow its descriptor or the journal with more entries
+    private boolean isFull(int more)
+    {
+        // Every held block may still need an image of its own when it is released
+        int entries = logged.size() + revoked.size() + held.size() + more;
+        return entries > BlockIO.blockSize() / 4 - 5
+                || logged.size() + held.size() + more + 3 > end - start;
+    }
+
+    private byte[] record(int type)
+    {
+        byte[] block = new byte[BlockIO.blockSize()];
+        SysLib.int2bytes(MAGIC, block, 0);
+        SysLib.int2bytes(type, block, 4);
+        SysLib.int2bytes(sequence, block, 8);
+        return block;
+    }
+
+    private static boolean isRecord(byte[] block, int type, int sequence)
+    {
+        return SysLib.bytes2int(block, 0) == MAGIC && SysLib.bytes2int(block, 4) == type
+                && SysLib.bytes2int(block, 8) == sequence;
+    }
+
+    // The journal is empty, the next transaction goes right after the header. The header keeps
+    // the free list head and reserve of the last commit, which no record in the journal has now
+    private void writeHeader()
+    {
+        byte[] header = new byte[BlockIO.blockSize()];
+        SysLib.int2bytes(MAGIC, header, 0);
+        SysLib.int2bytes(sequence, header, 4);
+        SysLib.int2bytes(committedFreeList, header, 8);
+        writeReserve(header, 12, committedReserve);
+        BlockIO.writeDirect(start, header);
+        head = start + 1;
+    }
+}
@@ -33,9 +33,35 @@ public class Kernel
    public final static int SIZE    = 16; // SysLib.size( int fd )
    public final static int SEEK    = 17; // SysLib.seek( int fd, int offest, 
    //              int whence )
-   public final static int FORMAT  = 18; // SysLib.format( int files )
+   public final static int FORMAT  = 18; // SysLib.format( int files[,
+                                         //   int blockSize[, boolean extents]] )
    public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+   // Vectored block I/O
+   public final static int RAWREADV  = 20; // SysLib.rawreadv( int blks[], 
+   //                  byte b[][] )
+   public final static int RAWWRITEV = 21; // SysLib.rawwritev( int blks[], 
+   //                  byte b[][][, int offsets[]] )
+
+   // Asynchronous block I/O
+   public final static int RAWREAD_ASYNC  = 22; // SysLib.rawreadAsync( int blk,
+   //                  byte b[] )
+   public final static int RAWWRITE_ASYNC = 23; // SysLib.rawwriteAsync( int blk,
+   //                  byte b[] )
+   public final static int RAWPOLL        = 24; // SysLib.rawpoll( int id )
+   public final static int RAWWAIT        = 25; // SysLib.rawwait( int id )
+   public final static int RAWREADV_ASYNC = 26; // SysLib.rawreadvAsync( 
+   //                  int blks[], byte b[][] )
+   public final static int RAWDISCARD     = 27; // SysLib.rawdiscard( int blk )
+
+   // DISK snapshots, on a "diskimage=cow" disk
+   public final static int SNAPSHOT  = 28; // SysLib.snapshot( String name )
+   public final static int ROLLBACK  = 29; // SysLib.rollback( String name )
+   public final static int SNAPSHOTS = 30; // SysLib.snapshots( StringBuffer s )
+
+   // Cache counters and miss-ratio estimates
+   public final static int CSTATS = 31; // SysLib.cstats( StringBuffer s )
+
    // Predefined file descriptors
    public final static int STDIN  = 0;
    public final static int STDOUT = 1;
@@ -47,8 +73,9 @@ public class Kernel
 
    // System thread references
    private static Scheduler scheduler;
-   private static Disk disk;
+   private static BlockDevice disk;
    private static Cache cache;
+   private static boolean cacheStats; // dump the cache counters at SYNC
 
    // Synchronized Queues
    private static SyncQueue waitQueue;  // for threads to wait for their child
@@ -58,7 +85,17 @@ public class Kernel
    private static FileSystem fs;
 
    private final static int COND_DISK_REQ = 1; // wait condition 
-   private final static int COND_DISK_FIN = 2; // wait condition
+
+   // Disk interrupts so far, and threads asleep on COND_DISK_REQ that no
+   // interrupt has woken yet; both under diskWaits
+   private static final Object diskWaits = new Object( );
+   private static volatile int diskInterrupts = 0;
+   private static int diskSleepers = 0;
+
+   // Asynchronous requests not yet reaped by RAWPOLL or RAWWAIT, by id
+   private static Hashtable<Integer, DiskRequest> asyncRequests
+      = new Hashtable<Integer, DiskRequest>( );
+   private static int nextAsyncId = 0;
 
    // Standard input
    private static BufferedReader input
@@ -67,6 +104,8 @@ public class Kernel
    // The heart of Kernel
    public static int interrupt( int irq, int cmd, int param, Object args ) {
       TCB myTcb;
+      DiskRequest request;
+      int seen; // disk interrupts before a request was offered to the disk
       switch( irq ) {
          case INTERRUPT_SOFTWARE: // System calls
             switch( cmd ) { 
@@ -75,19 +114,83 @@ public class Kernel
                   scheduler = new Scheduler( ); 
                   scheduler.start( );
 
-                  // instantiate and start a disk
-                  disk = new Disk( 1000 );
+                  // instantiate and start a disk of "blocks=N" blocks, striped
+                  // over "disks=N" spindles if more than one is asked for;
+                  // a DISK image that cannot be opened is not booted on
+                  String bootArgs[] = ( String[] )args;
+                  int blocks = Integer.parseInt( 
+                     bootOption( bootArgs, "blocks", "1000" ) );
+                  int disks = Integer.parseInt( 
+                     bootOption( bootArgs, "disks", "1" ) );
+                  try {
+                     if ( disks > 1 ) {
+                        int stripeUnit = Integer.parseInt( 
+                           bootOption( bootArgs, "stripe", "8" ) );
+                        int memberSize 
+                           = StripedDisk.memberSize( blocks, disks, stripeUnit );
+                        Disk members[] = new Disk[disks];
+                        for ( int i = 0; i < disks; i++ )
+                           members[i] = newDisk( bootArgs, "DISK" + i, 
+                                                 memberSize, "" + i );
+                        disk = new StripedDisk( members, stripeUnit );
+                     } else
+                        disk = newDisk( bootArgs, "DISK", blocks, "" );
+                  } catch ( IOException e ) {
+                     SysLib.cerr( "threadOS: " + e.getMessage( ) + 
+                                  ", not booting\n" );
+                     return ERROR;
+                  }
                   disk.start( );
 
-                  // instantiate a cache memory
-                  cache = new Cache( disk.blockSize, 10 );
+                  // instantiate a cache memory of "cacheblocks=N" blocks, replaced
+                  // by "cachepolicy=", that the file system reads and writes
+                  // through with "fscache=on", keeping "cachemeta=N" of them,
+                  // an eighth by default, for its inodes and indirect blocks
+                  int cacheBlocks = Integer.parseInt( 
+                     bootOption( bootArgs, "cacheblocks", "10" ) );
+                  boolean fsCache = bootOption( bootArgs, "fscache", "off" )
+                     .equalsIgnoreCase( "on" );
+                  int metaBlocks = Integer.parseInt( bootOption( bootArgs, 
+                     "cachemeta", fsCache ? "" + cacheBlocks / 8 : "0" ) );
+                  cache = new Cache( Disk.blockSize, cacheBlocks, 
+                     Math.min( metaBlocks, cacheBlocks / 2 ), 
+                     bootOption( bootArgs, "cachepolicy", "secondchance" ) );
+                  if ( fsCache )
+                     BlockIO.setCache( cache );
+
+                  // follow the cache's accesses "cacheghosts=N" times its size
+                  // deep, to estimate its hit ratio up to that size, off unless
+                  // asked for, and dump its counters at every SYNC with
+                  // "cachestats=on"
+                  int ghosts = Integer.parseInt( 
+                     bootOption( bootArgs, "cacheghosts", "0" ) );
+                  if ( ghosts > 0 )
+                     cache.setMissRatioCurve( new MissRatioCurve( ghosts * cacheBlocks ) );
+                  cacheStats = bootOption( bootArgs, "cachestats", "off" )
+                     .equalsIgnoreCase( "on" );
 
                   // instantiate synchronized queues
                   ioQueue = new SyncQueue( );
                   waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
 
-                  // instantiate a file system;
-                  fs = new FileSystem(1000);
+                  // instantiate and start a flusher writing dirty cache pages back
+                  // past "dirtyhigh=N" percent of the pages, or once dirty for 
+                  // "dirtyage=N" ms, down to "dirtylow=N" percent; "flusher=off"
+                  // leaves them to eviction and sync
+                  if ( bootOption( bootArgs, "flusher", "on" ).equalsIgnoreCase( "on" ) ) {
+                     Flusher flusher = new Flusher( cache, disk, 
+                        Integer.parseInt( bootOption( bootArgs, "dirtyhigh", "50" ) ),
+                        Integer.parseInt( bootOption( bootArgs, "dirtylow", "20" ) ),
+                        Long.parseLong( bootOption( bootArgs, "dirtyage", "1000" ) ) );
+                     cache.setFlusher( flusher );
+                     flusher.start( );
+                  }
+
+                  // instantiate a file system, a new one gets "fsblock=N" byte blocks
+                  // and maps them with extents if "fsextents=on"
+                  fs = new FileSystem( blocks, Integer.parseInt( 
+                     bootOption( bootArgs, "fsblock", "" + Disk.blockSize ) ), 
+                     bootOption( bootArgs, "fsextents", "off" ).equalsIgnoreCase( "on" ) );
 
                   return OK;
                case EXEC:
@@ -116,23 +219,126 @@ public class Kernel
                   scheduler.sleepThread( param ); // param = milliseconds
                   return OK;
                case RAWREAD: // read a block of data from disk
-                  while ( disk.read( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  if ( param < 0 || param >= disk.getDiskSize( ) )
+                     return ERROR;
+                  seen = diskInterrupts;
+                  while ( ( request = disk.read( param, ( byte[] )args ) ) == null )
+                     seen = waitForDisk( seen );
+                  request.waitFor( );
                   return OK;
                case RAWWRITE: // write a block of data to disk
-                  while ( disk.write( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  if ( param < 0 || param >= disk.getDiskSize( ) )
+                     return ERROR;
+                  seen = diskInterrupts;
+                  while ( ( request = disk.write( param, ( byte[] )args ) ) == null )
+                     seen = waitForDisk( seen );
+                  request.waitFor( );
+                  return OK;
+               case RAWREADV:  // read a batch of blocks in one trip
+               case RAWWRITEV: // write a batch of blocks in one trip
+                  Object vector[] = ( Object[] )args;
+                  int blockIds[] = ( int[] )vector[0];
+                  byte buffers[][] = ( byte[][] )vector[1];
+                  // a write may take each block from an offset in its buffer
+                  int offsets[] = ( vector.length > 2 ) ? ( int[] )vector[2] 
+                     : new int[blockIds.length];
+                  if ( blockIds.length != buffers.length 
+                       || blockIds.length != offsets.length )
+                     return ERROR;
+                  for ( int i = 0; i < blockIds.length; i++ )
+                     if ( blockIds[i] < 0 || blockIds[i] >= disk.getDiskSize( ) 
+                          || offsets[i] < 0 
+                          || offsets[i] + Disk.blockSize > buffers[i].length )
+                        return ERROR;
+                  seen = diskInterrupts;
+                  while ( ( request = ( cmd == RAWREADV ) ? 
+                            disk.readv( blockIds, buffers ) : 
+                            disk.writev( blockIds, buffers, offsets ) ) == null )
+                     seen = waitForDisk( seen );
+                  request.waitFor( );
+                  return OK;
+               case RAWREAD_ASYNC:  // queue a block read and return its id
+               case RAWWRITE_ASYNC: // queue a block write and return its id
+                  if ( param < 0 || param >= disk.getDiskSize( ) )
+                     return ERROR;
+                  seen = diskInterrupts;
+                  while ( ( request = ( cmd == RAWREAD_ASYNC ) ? 
+                            disk.read( param, ( byte[] )args ) : 
+                            disk.write( param, ( byte[] )args ) ) == null )
+                     seen = waitForDisk( seen );
+                  return asyncId( request );
+               case RAWREADV_ASYNC: // queue a batch read only if the disk
+                                    // can take it right now
+                  Object batch[] = ( Object[] )args;
+                  int batchIds[] = ( int[] )batch[0];
+                  byte batchBuffers[][] = ( byte[][] )batch[1];
+                  if ( batchIds.length != batchBuffers.length )
+                     return ERROR;
+                  for ( int i = 0; i < batchIds.length; i++ )
+                     if ( batchIds[i] < 0 || batchIds[i] >= disk.getDiskSize( ) )
+                        return ERROR;
+                  if ( ( request = disk.readv( batchIds, batchBuffers ) ) == null )
+                     return ERROR;
+                  return asyncId( request );
+               case RAWDISCARD: // queue a discard hint, nobody waits for it
+                  if ( param < 0 || param >= disk.getDiskSize( ) )
+                     return ERROR;
+                  seen = diskInterrupts;
+                  while ( disk.discard( param ) == null )
+                     seen = waitForDisk( seen );
+                  return OK;
+               case SNAPSHOT: // freeze the disk under the name args
+               case ROLLBACK: // take the disk back to snapshot args
+                  String names[] = disk.snapshots( );
+                  if ( names == null || args == null || 
+                       ( ( String )args ).length( ) == 0 ||
+                       Arrays.asList( names ).contains( args ) != ( cmd == ROLLBACK ) )
+                     return ERROR;
+                  if ( cmd == SNAPSHOT ) {
+                     fs.sync( ); // the snapshot gets a clean file system
+                     cache.writeBack( );
+                  } else if ( fs.isIdle( ) == false )
+                     return ERROR; // open files would outlive their blocks
+                  else
+                     cache.invalidate( ); // nothing cached may reach the old blocks
+                  seen = diskInterrupts;
+                  while ( ( request = ( cmd == SNAPSHOT ) ?
+                            disk.snapshot( ( String )args ) :
+                            disk.rollback( ( String )args ) ) == null )
+                     seen = waitForDisk( seen );
+                  request.waitFor( );
+                  if ( cmd == ROLLBACK )
+                     fs.remount( );
+                  return OK;
+               case SNAPSHOTS: // list the snapshots in args, one per line
+                  if ( ( names = disk.snapshots( ) ) == null )
+                     return ERROR;
+                  for ( int i = 0; i < names.length; i++ )
+                     ( ( StringBuffer )args ).append( names[i] + "\n" );
+                  return names.length;
+               case RAWPOLL:  // 1 once request param is done, 0 until then
+                  request = asyncRequests.get( param );
+                  if ( request == null )
+                     return ERROR;
+                  if ( disk.testReady( request ) == false )
+                     return 0;
+                  asyncRequests.remove( param );
+                  return 1;
+               case RAWWAIT:  // sleep until request param is done
+                  request = asyncRequests.remove( param );
+                  if ( request == null )
+                     return ERROR;
+                  request.waitFor( );
                   return OK;
                case SYNC:     // synchronize disk data to a real file
                   fs.sync();
-                  while ( disk.sync( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  cache.writeBack( ); // what the cache holds back goes first
+                  seen = diskInterrupts;
+                  while ( ( request = disk.sync( ) ) == null )
+                     seen = waitForDisk( seen );
+                  request.waitFor( );
+                  if ( cacheStats )
+                     System.err.print( cache.stats( ) );
                   return OK;
                case READ:
                   switch ( param ) {
@@ -195,6 +401,9 @@ public class Kernel
                case CFLUSH:  // to be implemented in assignment 4
                   cache.flush( );
                   return OK;
+               case CSTATS:  // append the cache counters to args
+                  ( ( StringBuffer )args ).append( cache.stats( ) );
+                  return OK;
                case OPEN:    // to be implemented in project
                   if ((myTcb = scheduler.getMyTcb()) != null)
                   {
@@ -231,17 +440,33 @@ public class Kernel
                   }
                   return ERROR;
                case FORMAT:  // to be implemented in project
+                  if ( args != null && ( ( int[] )args ).length > 1 )
+                     return ( fs.format( param, ( ( int[] )args )[0], 
+                                         ( ( int[] )args )[1] != 0 ) == true ) ? OK : ERROR;
+                  if ( args != null )
+                     return ( fs.format( param, ( ( int[] )args )[0] ) == true ) 
+                        ? OK : ERROR;
                   return (fs.format(param) == true) ? OK : ERROR;
                case DELETE:  // to be implemented in project
                   return (fs.delete((String) args) == true) ? OK : ERROR;
             }
             return ERROR;
          case INTERRUPT_DISK: // Disk interrupts
-            // wake up the thread waiting for a service completion
-            ioQueue.dequeueAndWakeup( COND_DISK_FIN );
+            // complete the request the disk has just serviced, which wakes
+            // the one thread waiting for it
+            if ( args != null )
+               ( ( DiskRequest )args ).finish( );
 
-            // wake up the thread waiting for a request acceptance
-            ioQueue.dequeueAndWakeup( COND_DISK_REQ );
+            // wake up a thread waiting for a request acceptance, if there
+            // is one: a wakeup nobody takes would let a later waiter
+            // through before the disk had room for it
+            synchronized ( diskWaits ) {
+               diskInterrupts++;
+               if ( diskSleepers > 0 ) {
+                  diskSleepers--;
+                  ioQueue.dequeueAndWakeup( COND_DISK_REQ );
+               }
+            }
 
             return OK;
          case INTERRUPT_IO:   // other I/O interrupts (not implemented)
@@ -250,6 +475,55 @@ public class Kernel
       return OK;
    }
 
+   // Sleep until the next disk interrupt, after the disk turned down a
+   // request offered when seen interrupts had come.  One that came since
+   // may have made room already, so then return at once.  Returns the
+   // interrupts so far, to go with the next offer.
+   private static int waitForDisk( int seen ) {
+      synchronized ( diskWaits ) {
+         if ( diskInterrupts != seen )
+            return diskInterrupts;
+         diskSleepers++;
+      }
+      ioQueue.enqueueAndSleep( COND_DISK_REQ );
+      return diskInterrupts;
+   }
+
+   // Register a queued request for rawpoll and rawwait, and return its id
+   private static int asyncId( DiskRequest request ) {
+      synchronized ( asyncRequests ) {
+         int id = nextAsyncId;
+         nextAsyncId = ( nextAsyncId + 1 ) & Integer.MAX_VALUE;
+         asyncRequests.put( id, request );
+         return id;
+      }
+   }
+
+   // A disk with the scheduling policy, image backend and latency profile
+   // given at boot.  A "cow" image sits on "diskbase=FILE", plus the
+   // member suffix of a striped disk, or on fileName.base by default.
+   private static Disk newDisk( String bootArgs[], String fileName, 
+                                int totalBlocks, String member ) 
+      throws IOException {
+      String base = bootOption( bootArgs, "diskbase", null );
+      return new Disk( totalBlocks, 
+                       Disk.policyOf( bootOption( bootArgs, "disksched", "clook" ) ),
+                       Disk.openImage( bootOption( bootArgs, "diskimage", "heap" ),
+                                       fileName, totalBlocks, ( base == null ) ? 
+                                       fileName + ".base" : base + member ),
+                       Disk.latencyOf( bootOption( bootArgs, "latency", "hdd" ) ) );
+   }
+
+   // Look up a "key=value" boot argument, e.g. "disksched=sstf"
+   private static String bootOption( String args[], String key, 
+                                     String defaultValue ) {
+      if ( args != null )
+         for ( int i = 0; i < args.length; i++ )
+            if ( args[i].startsWith( key + "=" ) )
+               return args[i].substring( key.length( ) + 1 );
+      return defaultValue;
+   }
+
    // Spawning a new thread
    private static int sysExec( String args[] ) {
       String thrName = args[0]; // args[0] has a thread name
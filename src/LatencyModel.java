@@ -0,0 +1,12 @@
+/**
+ * How long a Disk takes to service a request.  The disk thread parks for
+ * the sum of the seek and the transfer time of each request it services.
+ */
+public interface LatencyModel {
+    // nanoseconds to move the head from one block to another
+    long seekNanos( int fromBlockId, int toBlockId );
+
+    // nanoseconds to transfer the given number of consecutive blocks in
+    // one go, never more than that many single-block transfers
+    long transferNanos( int blocks );
+}
@@ -0,0 +1,89 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * A DISK image paged in on demand.  Nothing is read at boot; a block is
+ * loaded from the host file the first time it is read, and the residency
+ * bitmap remembers which blocks are in memory.  A block overwritten before
+ * it was ever read is never loaded at all.  Sync writes back the blocks
+ * dirtied since the previous sync, one positional gather write per run.
+ */
+public class LazyDiskImage implements DiskImage {
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private byte blocks[][];   // resident blocks, null until paged in
+    private BitSet resident;   // blocks held in blocks[]
+    private BitSet dirty;      // blocks written since the last sync
+
+    // The file stays open for every page-in and sync; one that cannot be
+    // opened throws, rather than leave the image without a channel
+    public LazyDiskImage( String fileName, int diskSize ) throws IOException {
+	blocks = new byte[diskSize][];
+	resident = new BitSet( diskSize );
+	dirty = new BitSet( diskSize );
+	if ( new File( fileName ).exists( ) == false )
+	    SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	file = new RandomAccessFile( fileName, "rw" );
+	channel = file.getChannel( );
+    }
+
+    // Page a block in; the part of it past the end of the file reads as 0
+    private byte[] pageIn( int blockId ) {
+	if ( resident.get( blockId ) )
+	    return blocks[blockId];
+	byte block[] = new byte[Disk.blockSize];
+	try {
+	    ByteBuffer in = ByteBuffer.wrap( block );
+	    long position = ( long )blockId * Disk.blockSize;
+	    while ( in.hasRemaining( ) ) {
+		int n = channel.read( in, position );
+		if ( n < 0 )
+		    break;
+		position += n;
+	    }
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+	blocks[blockId] = block;
+	resident.set( blockId );
+	return block;
+    }
+
+    public void read( int blockId, byte buffer[] ) {
+	System.arraycopy( pageIn( blockId ), 0, buffer, 0, Disk.blockSize );
+    }
+
+    public void write( int blockId, byte buffer[], int offset ) {
+	if ( resident.get( blockId ) == false ) {
+	    blocks[blockId] = new byte[Disk.blockSize];
+	    resident.set( blockId );
+	}
+	System.arraycopy( buffer, offset, blocks[blockId], 0, Disk.blockSize );
+	dirty.set( blockId );
+    }
+
+    // the file keeps its size, so there is nothing to give back
+    public void discard( int blockId ) {
+    }
+
+    public void sync( ) {
+	try {
+	    int first = dirty.nextSetBit( 0 );
+	    while ( first >= 0 ) {
+		int last = dirty.nextClearBit( first );
+		ByteBuffer run[] = new ByteBuffer[last - first];
+		for ( int i = 0; i < run.length; i++ )
+		    run[i] = ByteBuffer.wrap( blocks[first + i] );
+		channel.position( ( long )first * Disk.blockSize );
+		while ( run[run.length - 1].hasRemaining( ) )
+		    channel.write( run );
+		first = dirty.nextSetBit( last );
+	    }
+	    dirty.clear( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * A DISK image mapped straight into memory with FileChannel.map.  Blocks
+ * are read and written in the host page cache, so nothing is loaded at
+ * boot and a sync only forces the blocks written since the last one.
+ * The file is mapped in 1GB segments, since a single mapping is limited
+ * to 2GB.
+ */
+public class MappedDiskImage implements DiskImage {
+    private static final int segmentSize = 1 << 30;
+    private final int segmentBlocks = segmentSize / Disk.blockSize;
+
+    private MappedByteBuffer segments[];
+    private BitSet dirty;      // blocks written since the last sync
+
+    public MappedDiskImage( String fileName, int diskSize ) 
+	throws IOException {
+	dirty = new BitSet( diskSize );
+	long imageSize = ( long )diskSize * Disk.blockSize;
+	segments = new MappedByteBuffer[ ( int )( ( imageSize + segmentSize - 1 ) 
+						  / segmentSize ) ];
+	if ( new File( fileName ).exists( ) == false )
+	    SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	RandomAccessFile file = new RandomAccessFile( fileName, "rw" );
+	try {
+	    FileChannel channel = file.getChannel( );
+	    for ( int i = 0; i < segments.length; i++ ) {
+		long position = ( long )i * segmentSize;
+		// mapping past the end grows the file to the full disk size
+		segments[i] = channel.map( FileChannel.MapMode.READ_WRITE, 
+					   position, 
+					   Math.min( segmentSize, 
+						     imageSize - position ) );
+	    }
+	} finally {
+	    // the mappings stay valid after the channel is closed
+	    file.close( );
+	}
+    }
+
+    public void read( int blockId, byte buffer[] ) {
+	segments[blockId / segmentBlocks].get( 
+	    ( blockId % segmentBlocks ) * Disk.blockSize, 
+	    buffer, 0, Disk.blockSize );
+    }
+
+    public void write( int blockId, byte buffer[], int offset ) {
+	segments[blockId / segmentBlocks].put( 
+	    ( blockId % segmentBlocks ) * Disk.blockSize, 
+	    buffer, offset, Disk.blockSize );
+	dirty.set( blockId );
+    }
+
+    // the file keeps its size, so there is nothing to give back
+    public void discard( int blockId ) {
+    }
+
+    // Force each run of consecutive dirty blocks with a single call
+    public void sync( ) {
+	int first = dirty.nextSetBit( 0 );
+	while ( first >= 0 ) {
+	    int last = dirty.nextClearBit( first );
+	    // a run never crosses a segment boundary
+	    int end = Math.min( last, ( first / segmentBlocks + 1 ) * segmentBlocks );
+	    segments[first / segmentBlocks].force( 
+		( first % segmentBlocks ) * Disk.blockSize, 
+		( end - first ) * Disk.blockSize );
+	    first = dirty.nextSetBit( end );
+	}
+	dirty.clear( );
+    }
+}
@@ -0,0 +1,157 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Estimates the hit ratio a cache would get at sizes other than its own.
+ * It keeps the blocks of the latest accesses in LRU order, those still in
+ * the cache and, past them, ghosts whose data is gone, and counts how deep
+ * in that stack each access finds its block.  An LRU cache of n pages hits
+ * exactly the accesses found less than n deep (Mattson's stack algorithm),
+ * so one pass gives the curve for every size up to the stack's depth.
+ *
+ * A deep stack is split into shards by a hash of the block number, each
+ * with a stack of its own under its own lock, so accesses to different
+ * shards never wait on each other.  Each shard is a sample of the blocks,
+ * and a block found d deep in its shard is taken to be about d times the
+ * shard count deep in the whole stack.  A shard is kept at least
+ * minShardDepth deep, as a shallow sample says little, so a stack of a few
+ * hundred blocks is one shard and its curve is exact.  A shard finds a block's depth without walking its
+ * stack: it stamps each access with a clock tick and counts the blocks
+ * stamped since the block's own stamp in a Fenwick tree over the ticks.
+ */
+public class MissRatioCurve {
+    private static final int maxShards = 16;
+    private static final int minShardDepth = 256;
+    private int depth;          // blocks remembered
+    private int shardCount;     // a power of two
+    private Shard shards[];
+
+    // The stack of the blocks whose number hashes to one shard
+    private class Shard {
+	int depth;              // blocks remembered
+	HashMap<Integer, Integer> stamps; // blockId -> tick
+	int blockAt[];          // the block stamped at each tick, or -1
+	int tree[];             // Fenwick tree, 1 at each live tick
+	int clock;              // the next tick
+	int oldest;             // no live tick is below it
+	int live;               // blocks in the stack
+	long found[];           // accesses found at each depth
+	long accesses;
+
+	Shard( int depth ) {
+	    this.depth = depth;
+	    stamps = new HashMap<Integer, Integer>( );
+	    blockAt = new int[2 * depth];
+	    Arrays.fill( blockAt, -1 );
+	    tree = new int[2 * depth + 1];
+	    clock = 0;
+	    oldest = 0;
+	    live = 0;
+	    found = new long[depth];
+	    accesses = 0;
+	}
+
+	synchronized void access( int blockId ) {
+	    Integer tick = stamps.get( blockId );
+	    if ( tick != null ) {
+		// the blocks stamped after it are the ones above it
+		found[live - count( tick )]++;
+		unstamp( tick );
+	    } else if ( live == depth ) {
+		while ( blockAt[oldest] == -1 )
+		    oldest++;
+		stamps.remove( blockAt[oldest] );
+		unstamp( oldest );
+	    }
+	    if ( clock == blockAt.length )
+		compact( );
+	    blockAt[clock] = blockId;
+	    add( clock, 1 );
+	    stamps.put( blockId, clock );
+	    clock++;
+	    live++;
+	    accesses++;
+	}
+
+	void unstamp( int tick ) {
+	    blockAt[tick] = -1;
+	    add( tick, -1 );
+	    live--;
+	}
+
+	// Number the live ticks from 0 again, in the same order, once the
+	// clock runs out; at least depth accesses pass between two of these
+	void compact( ) {
+	    int next = 0;
+	    Arrays.fill( tree, 0 );
+	    for ( int tick = oldest; tick < blockAt.length; tick++ ) {
+		if ( blockAt[tick] == -1 )
+		    continue;
+		int blockId = blockAt[tick];
+		blockAt[tick] = -1;
+		blockAt[next] = blockId;
+		stamps.put( blockId, next );
+		add( next, 1 );
+		next++;
+	    }
+	    clock = next;
+	    oldest = 0;
+	}
+
+	void add( int tick, int delta ) {
+	    for ( int i = tick + 1; i < tree.length; i += i & -i )
+		tree[i] += delta;
+	}
+
+	// The live ticks up to and including tick
+	int count( int tick ) {
+	    int sum = 0;
+	    for ( int i = tick + 1; i > 0; i -= i & -i )
+		sum += tree[i];
+	    return sum;
+	}
+    }
+
+    public MissRatioCurve( int depth ) {
+	this.depth = depth;
+	shardCount = 1;
+	while ( shardCount < maxShards
+		&& depth / ( 2 * shardCount ) >= minShardDepth )
+	    shardCount *= 2;
+	shards = new Shard[shardCount];
+	for ( int i = 0; i < shardCount; i++ )
+	    shards[i] = new Shard( ( depth + shardCount - 1 ) / shardCount );
+    }
+
+    public int depth( ) {
+	return depth;
+    }
+
+    public void access( int blockId ) {
+	// the high bits of the product mixed into the low ones, so blocks
+	// with numbers in step still spread over the shards
+	int hash = blockId * 0x9E3779B9;
+	shards[( hash ^ ( hash >>> 16 ) ) & ( shardCount - 1 )].access( blockId );
+    }
+
+    // The fraction of the accesses so far an LRU cache of the given number
+    // of pages would have hit, at most depth pages.  A shard depth d stands
+    // for the whole-stack depths d * shardCount up to the next shard depth,
+    // and counts for the share of those below pages.
+    public double hitRatio( int pages ) {
+	pages = Math.min( pages, depth );
+	double hits = 0;
+	long accesses = 0;
+	for ( int s = 0; s < shardCount; s++ ) {
+	    Shard shard = shards[s];
+	    synchronized ( shard ) {
+		accesses += shard.accesses;
+		for ( int d = 0; d < shard.depth && d * shardCount < pages; d++ )
+		    hits += shard.found[d]
+			* Math.min( 1.0, ( double )( pages - d * shardCount )
+				    / shardCount );
+	    }
+	}
+	return ( accesses == 0 ) ? 0.0 : hits / accesses;
+    }
+}
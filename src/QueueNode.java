@@ -0,0 +1,27 @@
+import java.util.*;
+
+public class QueueNode {
+    private Vector<Integer> pidQueue;
+
+    public QueueNode( ) {
+	pidQueue = new Vector<Integer>( );
+	pidQueue.clear( );
+    }
+
+    public synchronized int sleep( ) {
+	// loop rather than test once: with several sleepers on the same
+	// condition, a thread entering sleep( ) may take the pid meant for
+	// the one that was notified
+	while ( pidQueue.size( ) == 0 ) {
+	    try {
+		wait( );
+	    } catch ( InterruptedException e ) { };
+	}
+	return pidQueue.remove( 0 );
+    }
+
+    public synchronized void wakeup( int pid ) {
+	pidQueue.add( pid );
+	notify( );
+    }
+}
@@ -0,0 +1,165 @@
+import java.util.Hashtable;
+import java.util.Vector;
+
+/*
+ Blocks read into the cache ahead of a sequential reader. FileSystem.read notices when a file is
+ read front to back and queues asynchronous reads of the blocks that come next, so that by the
+ time the reader gets to them they are cache hits. Only which blocks were prefetched is kept here,
+ their data goes to the cache as soon as it is in, so without a cache nothing is read ahead.
+ A block is forgotten once it is read, when it is written or freed, or when newer prefetches need
+ the room
+ */
+
+public class ReadAhead
+{
+    // Most blocks remembered at once
+    private final static int capacity = 64;
+
+    // The read of each block prefetched, or -1 once the block is in the cache
+    private Hashtable<Integer, Integer> blocks = new Hashtable<Integer, Integer>();
+    private Vector<Integer> order = new Vector<Integer>();   // oldest first
+
+    /**
+     * Queue a read of the block into the cache unless it is already there or on the way
+     *
+     * @param blockId the file system block
+     * @return false if there is no cache or the disk could not take the read, there is no point
+     * asking for more now
+     */
+    public boolean prefetch(int blockId)
+    {
+        settleDone();
+        int oldest = -1;
+        boolean queued;
+        synchronized (this)
+        {
+            if (blocks.containsKey(blockId) || BlockIO.isCached(blockId))
+            {
+                return true;
+            }
+            if (order.size() >= capacity)
+            {
+                oldest = remove(order.firstElement());
+            }
+            int id = BlockIO.prefetch(blockId);
+            queued = id >= 0;
+            if (queued)
+            {
+                blocks.put(blockId, id);
+                order.addElement(blockId);
+            }
+        }
+        if (oldest != -1)
+        {
+            BlockIO.settle(oldest);
+        }
+        return queued;
+    }
+
+    /**
+     * Forget a block about to be read, once it is in the cache if it was prefetched
+     *
+     * @param blockId the file system block
+     * @return true if it was prefetched
+     */
+    public boolean take(int blockId)
+    {
+        int id;
+        synchronized (this)
+        {
+            if (!blocks.containsKey(blockId))
+            {
+                return false;
+            }
+            id = remove(blockId);
+        }
+        if (id != -1)
+        {
+            BlockIO.settle(id);
+        }
+        return true;
+    }
+
+    /**
+     * The block is about to change on the disk, a read of it on the way may bring in stale data.
+     * Returns once no read of it is left on the way
+     *
+     * @param blockId the file system block
+     */
+    public void forget(int blockId)
+    {
+        int id = -1;
+        synchronized (this)
+        {
+            if (blocks.containsKey(blockId))
+            {
+                id = remove(blockId);
+            }
+        }
+        if (id != -1)
+        {
+            BlockIO.cancel(id);
+        }
+    }
+
+    /**
+     * Forget every block and let go of the reads on the way, the disk under them has changed
+     */
+    public void forgetAll()
+    {
+        Vector<Integer> ids = new Vector<Integer>();
+        synchronized (this)
+        {
+            while (!order.isEmpty())
+            {
+                ids.addElement(remove(order.firstElement()));
+            }
+        }
+        for (int i = 0; i < ids.size(); i++)
+        {
+            if (ids.elementAt(i) != -1)
+            {
+                BlockIO.cancel(ids.elementAt(i));
+            }
+        }
+    }
+
+    // Put every block whose read is done into the cache, so its buffers go back to the pool
+    // without waiting for the reader. isDone reaps a read under the lock, so it is installed by
+    // one thread only, once the lock is let go, as the cache may write to the disk. One read at a
+    // time, so nothing has to hold the ids in between
+    private void settleDone()
+    {
+        int next = 0;
+        while (true)
+        {
+            int id = -1;
+            synchronized (this)
+            {
+                for (; next < order.size() && id == -1; next++)
+                {
+                    Integer blockId = order.elementAt(next);
+                    int read = blocks.get(blockId);
+                    if (read != -1 && BlockIO.isDone(read))
+                    {
+                        id = read;
+                        blocks.put(blockId, -1);
+                    }
+                }
+            }
+            if (id == -1)
+            {
+                return;
+            }
+            BlockIO.install(id);
+        }
+    }
+
+    // Take the block out, the caller holds the lock. Its read may still be on the way, it is
+    // settled or cancelled once the lock is let go, so a slow read holds up nobody else
+    private int remove(int blockId)
+    {
+        order.removeElement(blockId);
+        return blocks.remove(blockId);
+    }
+}
@@ -0,0 +1,24 @@
+/**
+ * Decides which page of a Cache gives way to a missed block.  The cache
+ * numbers its pages 0 .. frames-1 and tells the policy what happens to
+ * them; the policy keeps whatever order or history it needs.
+ *
+ * Cache calls touch, insert and remove under the lock of the block's
+ * stripe, and victim with no lock held, from many threads at once.
+ */
+public interface ReplacementPolicy {
+    // the block in page entry was read or written
+    void touch( int entry );
+
+    // blockId was loaded into the empty page entry
+    void insert( int entry, int blockId );
+
+    // page entry no longer holds blockId
+    void remove( int entry, int blockId );
+
+    // pick a page to load blockId into, preferring empty ones, and claim
+    // it with cache.claim( entry ); -1 if every page is claimed already.
+    // A page looked at and kept without trying cache.claim is reported
+    // with cache.passed( entry ).
+    int victim( Cache cache, int blockId );
+}
@@ -0,0 +1,76 @@
+import java.util.Arrays;
+
+/*
+ Small arrays that the reads and writes of one open file reuse from one call to the next, so steady
+ file I/O does not make new ones every time. The block layer wants arrays exactly as long as the
+ blocks it is given, so one array of each length is kept for each use, up to a few blocks; longer
+ calls get new arrays. The caller holds the lock of the file table entry while it uses them
+ */
+
+public class Scratch
+{
+    // Uses an array can be kept for, a caller may hold one array of each use at once
+    public final static int uses = 4;
+    // Longest array kept, in blocks
+    private final static int maxLength = 16;
+
+    private int[][][] ints = new int[uses][maxLength + 1][];
+    private byte[][][][] buffers = new byte[uses][maxLength + 1][][];
+    private boolean[][][] flags = new boolean[uses][maxLength + 1][];
+
+    /**
+     * @param use    which of the uses, below uses
+     * @param length the length wanted
+     * @return an array of that length, holding whatever it last held
+     */
+    public int[] ints(int use, int length)
+    {
+        if (length > maxLength)
+        {
+            return new int[length];
+        }
+        if (ints[use][length] == null)
+        {
+            ints[use][length] = new int[length];
+        }
+        return ints[use][length];
+    }
+
+    /**
+     * @param use    which of the uses, below uses
+     * @param length the length wanted
+     * @return an array of that length, holding whatever it last held. Clear it once done with it,
+     * so it does not keep the buffers it points at from the garbage collector
+     */
+    public byte[][] buffers(int use, int length)
+    {
+        if (length > maxLength)
+        {
+            return new byte[length][];
+        }
+        if (buffers[use][length] == null)
+        {
+            buffers[use][length] = new byte[length][];
+        }
+        return buffers[use][length];
+    }
+
+    /**
+     * @param use    which of the uses, below uses
+     * @param length the length wanted
+     * @return an array of that length, all false
+     */
+    public boolean[] flags(int use, int length)
+    {
+        if (length > maxLength)
+        {
+            return new boolean[length];
+        }
+        if (flags[use][length] == null)
+        {
+            flags[use][length] = new boolean[length];
+        }
+        Arrays.fill(flags[use][length], false);
+        return flags[use][length];
+    }
+}
@@ -0,0 +1,49 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * The second-chance clock the cache always used.  The hand passes over
+ * pages referenced since it last came by, clearing their bit, and stops at
+ * the first one that was not.  The hand and the bits are atomic, so no
+ * lock is taken to pick a victim.
+ */
+public class SecondChancePolicy implements ReplacementPolicy {
+    private int first;                     // the first page it replaces
+    private AtomicIntegerArray reference;  // 1 if referenced, from first on
+    private AtomicInteger hand;            // taken modulo the pages
+
+    public SecondChancePolicy( int frames ) {
+	this( 0, frames );
+    }
+
+    // Replace pages firstPage .. firstPage + frames - 1
+    public SecondChancePolicy( int firstPage, int frames ) {
+	first = firstPage;
+	reference = new AtomicIntegerArray( frames );
+	hand = new AtomicInteger( 0 );
+    }
+
+    public void touch( int entry ) {
+	reference.set( entry - first, 1 );
+    }
+
+    public void insert( int entry, int blockId ) {
+	reference.set( entry - first, 1 );
+    }
+
+    public void remove( int entry, int blockId ) {
+	reference.set( entry - first, 0 );
+    }
+
+    public int victim( Cache cache, int blockId ) {
+	int frames = reference.length( );
+	// two sweeps clear every bit, so a third finds a page if any is free
+	for ( int tried = 0; tried < 3 * frames; tried++ ) {
+	    int i = ( hand.getAndIncrement( ) & Integer.MAX_VALUE ) % frames;
+	    if ( reference.compareAndSet( i, 1, 0 ) )
+		cache.passed( first + i );
+	    else if ( cache.claim( first + i ) )
+		return first + i;
+	}
+	return -1;
+    }
+}
@@ -0,0 +1,329 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * A copy-on-write DISK image: a read-only base file, shared by any number
+ * of kernels, under an overlay file of this kernel's own that keeps only
+ * the blocks written since.  Booting reads the overlay alone, so it costs
+ * what has changed, whatever the size of the base.
+ *
+ * The overlay is a stack of layers.  Writes go to the top one; a snapshot
+ * freezes the top layer under a name and starts a new one over it, and a
+ * rollback drops every layer above the named snapshot, so it costs what
+ * was written after it.  The overlay file is a header followed by a log:
+ *
+ *   magic, blockSize, diskSize, then any number of
+ *   blockId, Disk.blockSize bytes      the block in the top layer
+ *   DISCARD, blockId                   the block out of the top layer
+ *   SNAPSHOT, name                     the top layer frozen under name
+ *
+ * A sync appends the blocks the top layer gained or lost since the last
+ * one, and a snapshot appends its record after them, so a frozen layer is
+ * written once and never again.  A rollback cuts the file back to the end
+ * of the named snapshot's record, which drops the layers above it.  Once
+ * the log holds more than twice what the layers need, a sync compacts it
+ * the way SparseDiskImage does.  A record cut short by a crash is dropped
+ * at boot, and the base file is never written.  Neither is an overlay
+ * file that turns out to hold something else, such as a plain image:
+ * opening it throws, and the kernel does not boot on it.
+ */
+public class SnapshotDiskImage implements DiskImage {
+    private static final int MAGIC = 0x434F574C; // "COWL"
+    private static final int DISCARD = -1;
+    private static final int SNAPSHOT = -2;
+    private static final int headerSize = 12;
+    private static final int blockRecord = 4 + Disk.blockSize;
+    // log bytes a compaction lets go by before it is worth rewriting
+    private static final int slack = 64 * blockRecord;
+    private String fileName;
+    private int diskSize;
+    private RandomAccessFile base; // null if there is no base file
+    private long baseBlocks;       // blocks the base file holds
+    private Vector<Layer> layers;  // oldest first
+    private BitSet dirty;          // top layer blocks changed since the sync
+    private long logLength;        // bytes of whole records in the file
+    private boolean rewrite;       // the file is not a log to append to
+
+    private static class Layer {
+	String name;               // "" for the top layer
+	Hashtable<Integer, byte[]> blocks
+	    = new Hashtable<Integer, byte[]>( ); // blockId -> its data
+	long end;                  // where its snapshot record ends
+
+	Layer( String name ) {
+	    this.name = name;
+	}
+    }
+
+    // An empty overlay file is taken for a missing one.  A file that holds
+    // anything but an overlay throws, since the first sync would write one
+    // over it.
+    public SnapshotDiskImage( String baseName, String fileName,
+			      int diskSize ) throws IOException {
+	this.fileName = fileName;
+	this.diskSize = diskSize;
+	layers = new Vector<Layer>( );
+	layers.add( new Layer( "" ) );
+	dirty = new BitSet( diskSize );
+	logLength = 0;
+	rewrite = true;
+	try {
+	    base = new RandomAccessFile( baseName, "r" );
+	    baseBlocks = base.length( ) / Disk.blockSize;
+	} catch ( IOException e ) {
+	    SysLib.cerr( "threadOS: no base image " + baseName + "\n" );
+	    base = null;
+	    baseBlocks = 0;
+	}
+	if ( new File( fileName ).length( ) == 0 ) {
+	    SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	    return;
+	}
+	DataInputStream in = new DataInputStream(
+	    new BufferedInputStream( new FileInputStream( fileName ) ) );
+	try {
+	    if ( in.readInt( ) != MAGIC || in.readInt( ) != Disk.blockSize )
+		throw new IOException( fileName + " is not an overlay image" );
+	    in.readInt( ); // the disk size it was written with
+	    loadLog( in );
+	    rewrite = false;
+	} catch ( EOFException e ) {
+	    throw new IOException( fileName + " is not an overlay image" );
+	} finally {
+	    in.close( );
+	}
+    }
+
+    // Replay the log up to its last whole record
+    private void loadLog( DataInputStream in ) throws IOException {
+	logLength = headerSize;
+	try {
+	    while ( true ) {
+		int blockId = in.readInt( );
+		if ( blockId == SNAPSHOT ) {
+		    String name = in.readUTF( );
+		    logLength += snapshotRecord( name );
+		    top( ).name = name;
+		    top( ).end = logLength;
+		    layers.add( new Layer( "" ) );
+		} else if ( blockId == DISCARD ) {
+		    blockId = in.readInt( );
+		    logLength += 8;
+		    top( ).blocks.remove( blockId );
+		} else if ( blockId >= 0 ) {
+		    byte block[] = new byte[Disk.blockSize];
+		    in.readFully( block );
+		    logLength += blockRecord;
+		    if ( blockId < diskSize )
+			top( ).blocks.put( blockId, block );
+		} else
+		    break;
+	    }
+	} catch ( EOFException e ) {
+	    // a record cut short ends the log
+	}
+    }
+
+    // bytes a snapshot record of the given name takes in the log
+    private static int snapshotRecord( String name ) {
+	int n = 0;
+	for ( int i = 0; i < name.length( ); i++ ) {
+	    char c = name.charAt( i );
+	    n += ( c >= 0x0001 && c <= 0x007F ) ? 1 : ( c <= 0x07FF ) ? 2 : 3;
+	}
+	return 4 + 2 + n;
+    }
+
+    private Layer top( ) {
+	return layers.lastElement( );
+    }
+
+    public void read( int blockId, byte buffer[] ) {
+	Integer key = blockId;
+	for ( int i = layers.size( ) - 1; i >= 0; i-- ) {
+	    byte block[] = layers.elementAt( i ).blocks.get( key );
+	    if ( block != null ) {
+		System.arraycopy( block, 0, buffer, 0, Disk.blockSize );
+		return;
+	    }
+	}
+	Arrays.fill( buffer, 0, Disk.blockSize, ( byte )0 );
+	if ( base == null || blockId >= baseBlocks )
+	    return;
+	try {
+	    base.seek( ( long )blockId * Disk.blockSize );
+	    base.readFully( buffer, 0, Disk.blockSize );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
+
+    public void write( int blockId, byte buffer[], int offset ) {
+	byte block[] = top( ).blocks.get( blockId );
+	if ( block == null ) {
+	    block = new byte[Disk.blockSize];
+	    top( ).blocks.put( blockId, block );
+	}
+	System.arraycopy( buffer, offset, block, 0, Disk.blockSize );
+	dirty.set( blockId );
+    }
+
+    // only a copy of the top layer can go; the block then reads back as
+    // it was at the last snapshot
+    public void discard( int blockId ) {
+	if ( top( ).blocks.remove( blockId ) != null )
+	    dirty.set( blockId );
+    }
+
+    // Names of the snapshots, oldest first
+    public String[] snapshots( ) {
+	String names[] = new String[layers.size( ) - 1];
+	for ( int i = 0; i < names.length; i++ )
+	    names[i] = layers.elementAt( i ).name;
+	return names;
+    }
+
+    // Freeze the blocks as they are now under the given name.  The name
+    // must not be in use.
+    public void snapshot( String name ) {
+	if ( name.length( ) == 0 || indexOf( name ) >= 0 )
+	    return;
+	sync( );
+	top( ).name = name;
+	layers.add( new Layer( "" ) );
+	if ( rewrite ) {
+	    compact( );
+	    return;
+	}
+	try {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream( );
+	    DataOutputStream out = new DataOutputStream( bytes );
+	    out.writeInt( SNAPSHOT );
+	    out.writeUTF( name );
+	    out.close( );
+	    append( bytes.toByteArray( ) );
+	    layers.elementAt( layers.size( ) - 2 ).end = logLength;
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	    rewrite = true;
+	}
+    }
+
+    // Go back to the blocks as they were at the named snapshot, dropping
+    // every later write and snapshot
+    public void rollback( String name ) {
+	int i = indexOf( name );
+	if ( i < 0 )
+	    return;
+	layers.setSize( i + 1 );
+	layers.add( new Layer( "" ) );
+	dirty.clear( );
+	if ( rewrite ) {
+	    compact( );
+	    return;
+	}
+	try {
+	    RandomAccessFile file = new RandomAccessFile( fileName, "rw" );
+	    file.setLength( layers.elementAt( i ).end );
+	    file.close( );
+	    logLength = layers.elementAt( i ).end;
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	    rewrite = true;
+	}
+    }
+
+    private int indexOf( String name ) {
+	for ( int i = 0; i < layers.size( ) - 1; i++ )
+	    if ( layers.elementAt( i ).name.equals( name ) )
+		return i;
+	return -1;
+    }
+
+    public void sync( ) {
+	if ( dirty.isEmpty( ) && rewrite == false )
+	    return;
+	long live = headerSize;
+	for ( int i = 0; i < layers.size( ); i++ ) {
+	    Layer layer = layers.elementAt( i );
+	    live += ( long )layer.blocks.size( ) * blockRecord;
+	    if ( i < layers.size( ) - 1 )
+		live += snapshotRecord( layer.name );
+	}
+	long appended = ( long )dirty.cardinality( ) * blockRecord;
+	if ( rewrite || logLength + appended > 2 * live + slack ) {
+	    compact( );
+	    return;
+	}
+	try {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream( );
+	    DataOutputStream out = new DataOutputStream( bytes );
+	    for ( int i = dirty.nextSetBit( 0 ); i >= 0;
+		  i = dirty.nextSetBit( i + 1 ) ) {
+		byte block[] = top( ).blocks.get( i );
+		if ( block == null ) {
+		    out.writeInt( DISCARD );
+		    out.writeInt( i );
+		} else {
+		    out.writeInt( i );
+		    out.write( block );
+		}
+	    }
+	    out.close( );
+	    append( bytes.toByteArray( ) );
+	    dirty.clear( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	    rewrite = true;
+	}
+    }
+
+    // Add records to the log, over whatever a crash left after its last
+    // whole record
+    private void append( byte records[] ) throws IOException {
+	RandomAccessFile file = new RandomAccessFile( fileName, "rw" );
+	file.setLength( logLength );
+	file.seek( logLength );
+	file.write( records );
+	file.close( );
+	logLength += records.length;
+    }
+
+    // Write a new log holding every layer once, oldest first, and put it
+    // in the old one's place
+    private void compact( ) {
+	File temp = new File( fileName + ".new" );
+	try {
+	    DataOutputStream out = new DataOutputStream(
+		new BufferedOutputStream( new FileOutputStream( temp ) ) );
+	    out.writeInt( MAGIC );
+	    out.writeInt( Disk.blockSize );
+	    out.writeInt( diskSize );
+	    long ends[] = new long[layers.size( )];
+	    for ( int i = 0; i < layers.size( ); i++ ) {
+		Layer layer = layers.elementAt( i );
+		for ( Enumeration<Integer> e = layer.blocks.keys( );
+		      e.hasMoreElements( ); ) {
+		    Integer blockId = e.nextElement( );
+		    out.writeInt( blockId );
+		    out.write( layer.blocks.get( blockId ) );
+		}
+		if ( i < layers.size( ) - 1 ) {
+		    out.writeInt( SNAPSHOT );
+		    out.writeUTF( layer.name );
+		}
+		ends[i] = out.size( );
+	    }
+	    out.close( );
+	    if ( temp.renameTo( new File( fileName ) ) == false )
+		throw new IOException( "cannot replace " + fileName );
+	    for ( int i = 0; i < layers.size( ); i++ )
+		layers.elementAt( i ).end = ends[i];
+	    logLength = ends[layers.size( ) - 1];
+	    rewrite = false;
+	    dirty.clear( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
+}
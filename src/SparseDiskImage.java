@@ -0,0 +1,219 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * A DISK image that only stores the blocks holding data.  A block that is
+ * all zero, or that the file system discarded, takes no room in memory or
+ * in the host file, and a stored block is cut after its last non-zero
+ * byte.  The host file is a header followed by a log of block records:
+ *
+ *   magic, blockSize, diskSize, then any number of
+ *   blockId, length, length bytes
+ *
+ * where a later record of a block replaces an earlier one and a record of
+ * length 0 drops the block.  Sync appends a record for each block changed
+ * since the previous sync, so it costs what was written, not what is
+ * stored.  Once the log holds more than twice what the live blocks need,
+ * a sync compacts it instead: it writes one record per stored block to a
+ * new host file next to the old one and renames it over it.  A record cut
+ * short by a crash in the middle of a sync is dropped at boot.  A host
+ * file in the plain format of the other images is read as one and
+ * compacted at the first sync.
+ */
+public class SparseDiskImage implements DiskImage {
+    private static final int MAGIC = 0x5350524C; // "SPRL"
+    private static final int headerSize = 12;
+    private static final int recordSize = 8;         // before its bytes
+    // log bytes a compaction lets go by before it is worth rewriting
+    private static final int slack = 64 * ( recordSize + Disk.blockSize );
+    private String fileName;
+    private byte blocks[][];   // stored blocks, null for an all-zero one
+    private int lengths[];     // bytes of each block a record holds
+    private long liveBytes;    // what the records of the stored blocks take
+    private BitSet dirty;      // blocks changed since the last sync
+    private long logLength;    // bytes of whole records in the host file
+    private boolean rewrite;   // the host file is not a log to append to
+
+    // A host file that cannot be read throws, since the first sync would
+    // compact an empty image over it
+    public SparseDiskImage( String fileName, int diskSize ) 
+	throws IOException {
+	this.fileName = fileName;
+	blocks = new byte[diskSize][];
+	lengths = new int[diskSize];
+	liveBytes = 0;
+	dirty = new BitSet( diskSize );
+	logLength = 0;
+	rewrite = true;
+	if ( new File( fileName ).exists( ) == false ) {
+	    SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	    return;
+	}
+	DataInputStream in = new DataInputStream(
+	    new BufferedInputStream( new FileInputStream( fileName ) ) );
+	try {
+	    in.mark( 4 );
+	    int magic = ( in.available( ) >= 4 ) ? in.readInt( ) : 0;
+	    if ( magic == MAGIC ) {
+		loadLog( in );
+		rewrite = false;
+	    } else {
+		in.reset( );
+		loadPlain( in );
+	    }
+	} finally {
+	    in.close( );
+	}
+    }
+
+    // Replay the log up to its last whole record
+    private void loadLog( DataInputStream in ) throws IOException {
+	if ( in.readInt( ) != Disk.blockSize )
+	    throw new IOException( fileName + ": wrong block size" );
+	in.readInt( ); // the disk size it was written with
+	logLength = headerSize;
+	byte block[] = new byte[Disk.blockSize];
+	try {
+	    while ( true ) {
+		int blockId = in.readInt( );
+		int length = in.readInt( );
+		if ( length < 0 || length > Disk.blockSize )
+		    break;
+		Arrays.fill( block, ( byte )0 );
+		in.readFully( block, 0, length );
+		if ( blockId >= 0 && blockId < blocks.length )
+		    store( blockId, block, 0 );
+		logLength += recordSize + length;
+	    }
+	} catch ( EOFException e ) {
+	    // a record cut short ends the log
+	}
+    }
+
+    // A plain image, one block after another; a short file reads as 0
+    private void loadPlain( DataInputStream in ) throws IOException {
+	byte block[] = new byte[Disk.blockSize];
+	for ( int blockId = 0; blockId < blocks.length; blockId++ ) {
+	    int n = 0;
+	    while ( n < block.length ) {
+		int got = in.read( block, n, block.length - n );
+		if ( got < 0 )
+		    return;
+		n += got;
+	    }
+	    store( blockId, block, 0 );
+	}
+    }
+
+    private void store( int blockId, byte buffer[], int offset ) {
+	if ( blocks[blockId] != null )
+	    liveBytes -= recordSize + lengths[blockId];
+	lengths[blockId] = length( buffer, offset );
+	if ( lengths[blockId] == 0 )
+	    blocks[blockId] = null;
+	else {
+	    if ( blocks[blockId] == null )
+		blocks[blockId] = new byte[Disk.blockSize];
+	    System.arraycopy( buffer, offset, blocks[blockId], 0,
+			      Disk.blockSize );
+	    liveBytes += recordSize + lengths[blockId];
+	}
+    }
+
+    // bytes of the block at offset up to and including the last non-zero one
+    private static int length( byte buffer[], int offset ) {
+	int n = Disk.blockSize;
+	while ( n > 0 && buffer[offset + n - 1] == 0 )
+	    n--;
+	return n;
+    }
+
+    public void read( int blockId, byte buffer[] ) {
+	if ( blocks[blockId] == null )
+	    Arrays.fill( buffer, 0, Disk.blockSize, ( byte )0 );
+	else
+	    System.arraycopy( blocks[blockId], 0, buffer, 0, Disk.blockSize );
+    }
+
+    public void write( int blockId, byte buffer[], int offset ) {
+	store( blockId, buffer, offset );
+	dirty.set( blockId );
+    }
+
+    public void discard( int blockId ) {
+	if ( blocks[blockId] != null ) {
+	    liveBytes -= recordSize + lengths[blockId];
+	    lengths[blockId] = 0;
+	    blocks[blockId] = null;
+	    dirty.set( blockId );
+	}
+    }
+
+    public void sync( ) {
+	if ( dirty.isEmpty( ) && rewrite == false )
+	    return;
+	long appended = 0;
+	for ( int i = dirty.nextSetBit( 0 ); i >= 0;
+	      i = dirty.nextSetBit( i + 1 ) )
+	    appended += recordSize + lengths[i];
+	if ( rewrite
+	     || logLength + appended > 2 * ( headerSize + liveBytes ) + slack )
+	    compact( );
+	else
+	    append( );
+    }
+
+    // Add a record of every block changed since the last sync to the log,
+    // over whatever a crash left after its last whole record
+    private void append( ) {
+	try {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream( );
+	    DataOutputStream out = new DataOutputStream( bytes );
+	    for ( int i = dirty.nextSetBit( 0 ); i >= 0;
+		  i = dirty.nextSetBit( i + 1 ) )
+		writeRecord( out, i );
+	    out.close( );
+	    RandomAccessFile file = new RandomAccessFile( fileName, "rw" );
+	    file.setLength( logLength );
+	    file.seek( logLength );
+	    file.write( bytes.toByteArray( ) );
+	    file.close( );
+	    logLength += bytes.size( );
+	    dirty.clear( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
+
+    // Write a new log holding one record per stored block, and put it in
+    // the old one's place
+    private void compact( ) {
+	File temp = new File( fileName + ".new" );
+	try {
+	    DataOutputStream out = new DataOutputStream(
+		new BufferedOutputStream( new FileOutputStream( temp ) ) );
+	    out.writeInt( MAGIC );
+	    out.writeInt( Disk.blockSize );
+	    out.writeInt( blocks.length );
+	    for ( int i = 0; i < blocks.length; i++ )
+		if ( blocks[i] != null )
+		    writeRecord( out, i );
+	    out.close( );
+	    if ( temp.renameTo( new File( fileName ) ) == false )
+		throw new IOException( "cannot replace " + fileName );
+	    logLength = headerSize + liveBytes;
+	    rewrite = false;
+	    dirty.clear( );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
+
+    private void writeRecord( DataOutputStream out, int blockId )
+	throws IOException {
+	out.writeInt( blockId );
+	out.writeInt( lengths[blockId] );
+	if ( lengths[blockId] > 0 )
+	    out.write( blocks[blockId], 0, lengths[blockId] );
+    }
+}
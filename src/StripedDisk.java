@@ -0,0 +1,148 @@
+/**
+ * RAID-0: several Disks, each with its own thread and image file, striped
+ * into one logical block space.  Logical blocks are dealt round-robin to
+ * the member disks in runs of stripeUnit blocks, so independent requests
+ * land on different spindles and are serviced in parallel.
+ */
+public class StripedDisk implements BlockDevice {
+    private Disk disks[];
+    private int stripeUnit;   // consecutive blocks kept on one disk
+    private int diskSize;     // logical blocks
+
+    public StripedDisk( Disk disks[], int stripeUnit ) {
+	this.disks = disks;
+	this.stripeUnit = ( stripeUnit > 0 ) ? stripeUnit : 1;
+	diskSize = 0;
+	for ( int i = 0; i < disks.length; i++ )
+	    diskSize += disks[i].getDiskSize( );
+    }
+
+    // Blocks each member needs to hold its share of totalBlocks
+    public static int memberSize( int totalBlocks, int members, 
+				  int stripeUnit ) {
+	int stripes = ( totalBlocks + members * stripeUnit - 1 ) 
+	    / ( members * stripeUnit );
+	return stripes * stripeUnit;
+    }
+
+    private Disk diskOf( int blockId ) {
+	return disks[diskIndexOf( blockId )];
+    }
+
+    private int memberBlockOf( int blockId ) {
+	int stripe = blockId / stripeUnit;
+	return ( stripe / disks.length ) * stripeUnit + blockId % stripeUnit;
+    }
+
+    private int diskIndexOf( int blockId ) {
+	return ( blockId / stripeUnit ) % disks.length;
+    }
+
+    // Every request reaches the members through here, so a batch spanning
+    // several members can check all of their queues before queueing on any.
+    public synchronized DiskRequest read( int blockId, byte buffer[] ) {
+	return diskOf( blockId ).read( memberBlockOf( blockId ), buffer );
+    }
+
+    public synchronized DiskRequest write( int blockId, byte buffer[] ) {
+	return diskOf( blockId ).write( memberBlockOf( blockId ), buffer );
+    }
+
+    public synchronized DiskRequest sync( ) {
+	return everyMember( Disk.SYNC, null );
+    }
+
+    // Every member takes the same snapshot, so they keep the same names
+    public synchronized DiskRequest snapshot( String name ) {
+	return everyMember( Disk.SNAPSHOT, name );
+    }
+
+    public synchronized DiskRequest rollback( String name ) {
+	return everyMember( Disk.ROLLBACK, name );
+    }
+
+    public synchronized String[] snapshots( ) {
+	return disks[0].snapshots( );
+    }
+
+    // Queue the command on each member, or on none of them
+    private DiskRequest everyMember( int command, String name ) {
+	for ( int i = 0; i < disks.length; i++ )
+	    if ( disks[i].hasRoom( 1 ) == false )
+		return null;
+	DiskRequest parts[] = new DiskRequest[disks.length];
+	for ( int i = 0; i < disks.length; i++ )
+	    parts[i] = ( command == Disk.SYNC ) ? disks[i].sync( ) : 
+		( command == Disk.SNAPSHOT ) ? disks[i].snapshot( name ) : 
+		disks[i].rollback( name );
+	return new DiskRequest( command, parts );
+    }
+
+    public synchronized DiskRequest discard( int blockId ) {
+	return diskOf( blockId ).discard( memberBlockOf( blockId ) );
+    }
+
+    public synchronized DiskRequest readv( int blockIds[], byte buffers[][] ) {
+	return submit( Disk.READ, blockIds, buffers, null );
+    }
+
+    public synchronized DiskRequest writev( int blockIds[], byte buffers[][] ) {
+	return submit( Disk.WRITE, blockIds, buffers, null );
+    }
+
+    public synchronized DiskRequest writev( int blockIds[], byte buffers[][],
+					    int offsets[] ) {
+	return submit( Disk.WRITE, blockIds, buffers, offsets );
+    }
+
+    // Split a batch by member and queue each share as one batch
+    private DiskRequest submit( int command, int blockIds[], byte buffers[][],
+				int offsets[] ) {
+	int counts[] = new int[disks.length];
+	for ( int i = 0; i < blockIds.length; i++ )
+	    counts[diskIndexOf( blockIds[i] )]++;
+	for ( int d = 0; d < disks.length; d++ )
+	    if ( counts[d] > 0 && disks[d].hasRoom( counts[d] ) == false )
+		return null;
+
+	DiskRequest parts[] = new DiskRequest[disks.length];
+	for ( int d = 0; d < disks.length; d++ ) {
+	    int memberIds[] = new int[counts[d]];
+	    byte memberBuffers[][] = new byte[counts[d]][];
+	    int memberOffsets[] = new int[counts[d]];
+	    for ( int i = 0, j = 0; i < blockIds.length; i++ ) {
+		if ( diskIndexOf( blockIds[i] ) == d ) {
+		    memberIds[j] = memberBlockOf( blockIds[i] );
+		    memberOffsets[j] = ( offsets == null ) ? 0 : offsets[i];
+		    memberBuffers[j++] = buffers[i];
+		}
+	    }
+	    parts[d] = ( command == Disk.READ ) ? 
+		disks[d].readv( memberIds, memberBuffers ) : 
+		disks[d].writev( memberIds, memberBuffers, memberOffsets );
+	    if ( parts[d] == null ) // only a bad block id gets here
+		return null;
+	}
+	return new DiskRequest( command, parts );
+    }
+
+    public boolean testReady( DiskRequest request ) {
+	return request.isReady( );
+    }
+
+    public boolean isIdle( ) {
+	for ( int i = 0; i < disks.length; i++ )
+	    if ( disks[i].isIdle( ) == false )
+		return false;
+	return true;
+    }
+
+    public int getDiskSize( ) {
+	return diskSize;
+    }
+
+    public void start( ) {
+	for ( int i = 0; i < disks.length; i++ )
+	    disks[i].start( );
+    }
+}
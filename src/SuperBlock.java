@@ -1,30 +1,137 @@
+import java.util.Arrays;
+
 public class SuperBlock
 {
+    // Blocks written per vectored write while formatting
+    private final static int formatBatch = 256;
+    // Blocks the rotor skips past one it hands out, on a bitmap volume. They are left for the
+    // file that block starts a run of, so files written at the same time each stay in runs
+    private final static int allocationWindow = 8;
+
+    // On-disk formats, kept in block 0 at offset 12. Volumes written before
+    // the field existed hold 0 there and are read as FORMAT_V1.
+    // The file system block size follows at offset 16, 0 there means Disk.blockSize.
+    // The journal region comes next, its first block at offset 20 and its length at 24,
+    // a length of 0 means the volume has no journal.
+    // FORMAT_V3 volumes keep free blocks in a bitmap, a bit per block set while it is in use,
+    // whose first block is at offset 28 and length at 32. Their freeList is only where the
+    // search for a free block starts.
+    // The superblock itself only takes up the first disk block of file system block 0
+    public final static int FORMAT_V1 = 1;  // 32-byte inodes, 16-bit block numbers
+    public final static int FORMAT_V2 = 2;  // 64-byte inodes, 32-bit block numbers
+    public final static int FORMAT_V3 = 3;  // 64-byte inodes mapping runs of blocks with extents
+
     public int totalBlocks;
     public int totalInodes;
     public int freeList;
+    public int version;
+    public int blockSize;
+    public int journalStart;
+    public int journalBlocks;
+    public int bitmapStart;
+    public int bitmapBlocks;
+    public Journal journal;
+    private int diskBlocks;
 
 
     //Constructor that is passed number of blocks
 //Superblock is created by Filesystem.	
     public SuperBlock(int numBlocks)
     {
+        this(numBlocks, Disk.blockSize, false);
+    }
+
+    /**
+     * Mount the file system on the disk, or format it with the given block size if there is none
+     *
+     * @param numBlocks       the number of disk blocks
+     * @param blockSizeToMake the file system block size used if the disk needs formatting
+     * @param extentsToMake   true if the disk gets FORMAT_V3 if it needs formatting
+     */
+    public SuperBlock(int numBlocks, int blockSizeToMake, boolean extentsToMake)
+    {
+        diskBlocks = numBlocks;
         byte[] block0 = new byte[Disk.blockSize];
         SysLib.rawread(0, block0);    //block and byte array are passed in
         totalBlocks = SysLib.bytes2int(block0, 0);
         totalInodes = SysLib.bytes2int(block0, 4);
         freeList = SysLib.bytes2int(block0, 8);
-        if (totalBlocks == numBlocks && totalInodes > 0 && freeList >= 2)
+        version = SysLib.bytes2int(block0, 12);
+        blockSize = SysLib.bytes2int(block0, 16);
+        journalStart = SysLib.bytes2int(block0, 20);
+        journalBlocks = SysLib.bytes2int(block0, 24);
+        bitmapStart = SysLib.bytes2int(block0, 28);
+        bitmapBlocks = SysLib.bytes2int(block0, 32);
+        if (version == 0)
         {
-            return;
+            version = FORMAT_V1;
+        }
+        if (blockSize == 0)
+        {
+            blockSize = Disk.blockSize;
+        }
+        if (BlockIO.setBlockSize(blockSize) && totalBlocks == BlockIO.blocksOn(numBlocks)
+                && totalInodes > 0 && freeList >= 2
+                && (version == FORMAT_V1 || version == FORMAT_V2 || version == FORMAT_V3))
+        {
+            Inode.setFormat(version);
+            // Bring the metadata up to date before anything reads it
+            journal = new Journal(this);
+            BlockIO.setJournal(journal.isEnabled() ? journal : null);
+            journal.recover();
+            clearOpenFlags();
         } else
         {
-            totalBlocks = numBlocks;
-            format(64);
+            format(64, BlockIO.isValid(blockSizeToMake) ? blockSizeToMake : Disk.blockSize, extentsToMake);
         }
     }
 
 
+    /**
+     * Inode flags and counts only track files that are open, so none of them can be in use on a
+     * freshly mounted volume. Flags left behind by a shutdown that never closed its files would
+     * make falloc wait forever, and counts would keep the files from ever being truncated, so
+     * reset both before anything gets opened
+     */
+    private void clearOpenFlags()
+    {
+        int inodeBlocks = Inode.blocksFor(totalInodes);
+        int[] blockNums = new int[inodeBlocks];
+        byte[][] blockData = new byte[inodeBlocks][BlockIO.blockSize()];
+        for (int i = 0; i < inodeBlocks; i++)
+        {
+            blockNums[i] = 1 + i;
+        }
+        BlockIO.readMetadata(blockNums, blockData);
+        int changed = 0;
+        for (int i = 0; i < inodeBlocks; i++)
+        {
+            boolean dirty = false;
+            for (int j = i * Inode.inodesPerBlock(); j < Math.min((i + 1) * Inode.inodesPerBlock(), totalInodes); j++)
+            {
+                // The 2 byte count follows the 4 byte length, and the 2 byte flag follows it
+                int countOffset = Inode.offsetOf(j) + 4;
+                int flagOffset = countOffset + 2;
+                if (SysLib.bytes2short(blockData[i], countOffset) != 0
+                        || SysLib.bytes2short(blockData[i], flagOffset) != 0)
+                {
+                    SysLib.short2bytes((short) 0, blockData[i], countOffset);
+                    SysLib.short2bytes((short) 0, blockData[i], flagOffset);
+                    dirty = true;
+                }
+            }
+            if (dirty)
+            {
+                blockNums[changed] = blockNums[i];
+                blockData[changed++] = blockData[i];
+            }
+        }
+        if (changed > 0)
+        {
+            BlockIO.writeMetadata(Arrays.copyOf(blockNums, changed), Arrays.copyOf(blockData, changed));
+        }
+    }
+
     /**
      * THis method sync the data in the superblock to block 0 in the disk
      *
@@ -32,13 +139,30 @@ public class SuperBlock
 
 
     public void sync()
+    {
+        sync(freeList);
+    }
+
+    /**
+     * Write block 0 with the given free list head, the journal uses it to leave out changes
+     * that are not committed yet
+     *
+     * @param freeListToWrite the free list head to record
+     */
+    public void sync(int freeListToWrite)
     {
         byte[] blockInfo = new byte[Disk.blockSize];
 //Pass syslib.int2bytes the int, byte array and offset	
 //Since each int is 4 bytes. My offset increments by 4. 	
         SysLib.int2bytes(totalBlocks, blockInfo, 0);
         SysLib.int2bytes(totalInodes, blockInfo, 4);
-        SysLib.int2bytes(freeList, blockInfo, 8);
+        SysLib.int2bytes(freeListToWrite, blockInfo, 8);
+        SysLib.int2bytes(version, blockInfo, 12);
+        SysLib.int2bytes(blockSize, blockInfo, 16);
+        SysLib.int2bytes(journalStart, blockInfo, 20);
+        SysLib.int2bytes(journalBlocks, blockInfo, 24);
+        SysLib.int2bytes(bitmapStart, blockInfo, 28);
+        SysLib.int2bytes(bitmapBlocks, blockInfo, 32);
 //SysLib.rawwrite is passed blocknumber and byte array
         SysLib.rawwrite(0, blockInfo);
 
@@ -48,32 +172,121 @@ public class SuperBlock
 
     /**
      * This method takes in a number of block to format and format those block, starting from front
+     * New volumes get FORMAT_V2 unless this one has extents, 16-bit block numbers cannot address
+     * past block 32767
      *
      * @param numberOfBlock number of Block to Format
      */
     public void format(int numberOfBlock)
     {
+        format(numberOfBlock, blockSize);
+    }
+
+    /**
+     * Format the disk with the given number of inodes and file system block size
+     *
+     * @param numberOfBlock number of inodes to make
+     * @param newBlockSize  the file system block size, a multiple of Disk.blockSize
+     * @return false if the block size is not a valid one, the disk is left as it was
+     */
+    public boolean format(int numberOfBlock, int newBlockSize)
+    {
+        return format(numberOfBlock, newBlockSize, version == FORMAT_V3);
+    }
+
+    /**
+     * Format the disk with the given number of inodes, file system block size and block mapping
+     *
+     * @param numberOfBlock number of inodes to make
+     * @param newBlockSize  the file system block size, a multiple of Disk.blockSize
+     * @param extents       true for FORMAT_V3, false for FORMAT_V2
+     * @return false if the block size is not a valid one, the disk is left as it was
+     */
+    public boolean format(int numberOfBlock, int newBlockSize, boolean extents)
+    {
+        if (!BlockIO.setBlockSize(newBlockSize))
+        {
+            return false;
+        }
+        // Whatever the old journal and the cache hold is about to be wiped out, the new
+        // layout is written straight to the disk
+        BlockIO.setJournal(null);
+        BlockIO.invalidate();
+        blockSize = newBlockSize;
+        totalBlocks = BlockIO.blocksOn(diskBlocks);
         // Total Block to format
 
         totalInodes = numberOfBlock;
-        // Make all variables default by writing empty iNode to the block
-        for (short i = 0; i < totalInodes; ++i)
+        version = extents ? FORMAT_V3 : FORMAT_V2;
+        Inode.setFormat(version);
+        int inodeBlocks = Inode.blocksFor(totalInodes);
+        // The journal goes right after the inodes
+        journalStart = 1 + inodeBlocks;
+        journalBlocks = Journal.sizeFor(totalBlocks);
+        // Then the bitmap, if the volume has one
+        bitmapStart = journalStart + journalBlocks;
+        int bitsPerBlock = BlockIO.blockSize() * 8;
+        bitmapBlocks = extents ? (totalBlocks + bitsPerBlock - 1) / bitsPerBlock : 0;
+        // Where to jump
+        freeList = bitmapStart + bitmapBlocks;
+        // Lay out empty inodes in the inode blocks, and the index of the next available
+        // block in each free block, then write them out a batch of blocks at a time
+        int[] blockNums = new int[formatBatch];
+        byte[][] blockData = new byte[formatBatch][];
+        int batched = 0;
+        for (int i = 1; i < this.totalBlocks; i++)
         {
-            Inode tempNode = new Inode();
-            tempNode.flag = 0;
-            tempNode.toDisk(i);
+            byte[] tempData = new byte[BlockIO.blockSize()];
+            if (i <= inodeBlocks)
+            {
+                // Make all variables default by writing empty iNode to the block
+                int perBlock = Inode.inodesPerBlock();
+                for (int j = (i - 1) * perBlock; j < Math.min(i * perBlock, totalInodes); j++)
+                {
+                    Inode tempNode = new Inode();
+                    tempNode.flag = 0;
+                    tempNode.toBytes(tempData, Inode.offsetOf(j));
+                }
+            } else if (i >= journalStart && i < bitmapStart)
+            {
+                // The journal starts out empty, a record the old volume left there must not be
+                // taken for one of this volume's
+                Arrays.fill(tempData, (byte) 0);
+            } else if (i >= bitmapStart && i < freeList)
+            {
+                // Every block up to the first free one is in use
+                for (int block = (i - bitmapStart) * bitsPerBlock;
+                     block < Math.min((i - bitmapStart + 1) * bitsPerBlock, freeList); block++)
+                {
+                    int bit = block % bitsPerBlock;
+                    tempData[bit / 8] |= 1 << (bit % 8);
+                }
+            } else if (i >= freeList && bitmapBlocks == 0)
+            {
+                // Write the index of the next available block to the current block
+                SysLib.int2bytes(i + 1, tempData, 0);
+            } else
+            {
+                continue;
+            }
+            blockNums[batched] = i;
+            blockData[batched++] = tempData;
+            if (batched == formatBatch)
+            {
+                BlockIO.writeDirect(blockNums, blockData);
+                batched = 0;
+            }
         }
-        // Where to jump
-        freeList = 2 + (totalInodes / 16);
-        // Write the index of the next available block to the current block
-        for (int i = freeList; i < this.totalBlocks; i++)
+        if (batched > 0)
         {
-            byte[] tempData = new byte[Disk.blockSize];
-            SysLib.int2bytes(i + 1, tempData, 0);
-            SysLib.rawwrite(i, tempData);
+            BlockIO.writeDirect(Arrays.copyOf(blockNums, batched), Arrays.copyOf(blockData, batched));
         }
         // Update the super block
         this.sync();
+        journal = new Journal(this);
+        BlockIO.setJournal(journal);
+        journal.reset();
+        return true;
     }
 
 //----------------------------------------------------------------
@@ -88,34 +301,135 @@ public class SuperBlock
      */
 
     public int findFreeBlock()
+    {
+        if (bitmapBlocks > 0)
+        {
+            return findFreeBlock(-1);
+        }
+        // With a journal, the blocks come out of the ones it set aside at the last commit
+        int freeBlockNum = isJournaled() ? journal.allocate() : takeFreeListHead();
+        if (freeBlockNum > 0 && freeBlockNum < totalBlocks)
+        {
+            // The block is taken now, and what it held until now must not be put back
+            // over whatever its new owner writes
+            BlockIO.revoke(freeBlockNum);
+        }
+        return freeBlockNum;
+    }
+
+    /**
+     * Take the block at the head of the free list off it
+     *
+     * @return the block, or the head as it was if the list has run out
+     */
+    int takeFreeListHead()
     {
         // Get the current free block
         int freeBlockNum = freeList;
-        if (freeList > 0)
+        // Check if it is still within the range
+        if (freeList > 0 && freeList < totalBlocks)
         {
-            // Check if it is still within the range
-            if (freeList < totalBlocks)
-            {
-                byte[] blockInfo = new byte[Disk.blockSize];
-                SysLib.rawread(freeList, blockInfo);
+            byte[] blockInfo = BlockPool.take();
+            BlockIO.read(freeList, blockInfo);
 
-                // Get the next free block
-                freeList = SysLib.bytes2int(blockInfo, 0);
+            // Get the next free block
+            freeList = SysLib.bytes2int(blockInfo, 0);
+            BlockPool.give(blockInfo);
+        }
+        return freeBlockNum;
+    }
+
+    /**
+     * Find a free block, the goal block itself if it is free and the volume has a bitmap, or the
+     * next free one from the rotor, which then skips the blocks after it for it to grow into. A
+     * free list only ever hands out its head
+     *
+     * @param goal the block wanted, or -1 for any
+     * @return the block number of the block now taken, -1 if there is none left on a bitmap volume
+     */
+    public int findFreeBlock(int goal)
+    {
+        if (bitmapBlocks == 0)
+        {
+            return findFreeBlock();
+        }
+        int block = -1;
+        if (goal >= freeListStart() && goal < totalBlocks && setBit(goal, true))
+        {
+            block = goal;
+        } else
+        {
+            // A new run, the rotor moves on past the room it has to grow
+            block = takeFreeBit(Math.max(freeList, freeListStart()));
+            if (block != -1)
+            {
+                freeList = Math.min(block + allocationWindow, totalBlocks - 1);
+            }
+        }
+        if (block != -1)
+        {
+            BlockIO.revoke(block);
+        }
+        return block;
+    }
 
-                SysLib.int2bytes(0, blockInfo, 0);
-                // Update the current block that it now do not have any free block
-                SysLib.rawwrite(freeBlockNum, blockInfo);
+    // The first block that can ever be free
+    private int freeListStart()
+    {
+        return bitmapStart + bitmapBlocks;
+    }
 
+    // Set the first clear bit from block start on, going round to the first free block, and
+    // return its block, -1 if every bit is set
+    private int takeFreeBit(int start)
+    {
+        int bitsPerBlock = BlockIO.blockSize() * 8;
+        int span = totalBlocks - freeListStart();
+        byte[] bits = BlockPool.take();
+        int loaded = -1;
+        for (int n = 0; n < span; n++)
+        {
+            int block = freeListStart() + (start - freeListStart() + n) % span;
+            int bit = block % bitsPerBlock;
+            if (block / bitsPerBlock != loaded)
+            {
+                loaded = block / bitsPerBlock;
+                BlockIO.readMetadata(bitmapStart + loaded, bits);
+            }
+            if ((bits[bit / 8] & (1 << (bit % 8))) == 0)
+            {
+                bits[bit / 8] |= 1 << (bit % 8);
+                BlockIO.log(bitmapStart + loaded, bits);
+                BlockPool.give(bits);
+                return block;
             }
         }
+        BlockPool.give(bits);
+        return -1;
+    }
 
-        return freeBlockNum;
+    // Set or clear the bit of a block, false if it already was that way
+    private boolean setBit(int block, boolean used)
+    {
+        int bitsPerBlock = BlockIO.blockSize() * 8;
+        int bit = block % bitsPerBlock;
+        byte[] bits = BlockPool.take();
+        BlockIO.readMetadata(bitmapStart + block / bitsPerBlock, bits);
+        boolean changed = ((bits[bit / 8] & (1 << (bit % 8))) != 0) != used;
+        if (changed)
+        {
+            bits[bit / 8] ^= 1 << (bit % 8);
+            BlockIO.log(bitmapStart + block / bitsPerBlock, bits);
+        }
+        BlockPool.give(bits);
+        return changed;
     }
 
     /**
      * This method add the new free block back to the list of free block
      * It does this by setting the block in the parameter to be the free block
-     * And setting the old free block to be this current next free block
+     * And setting the old free block to be this current next free block.
+     * With a journal the block stays out of reach until the transaction freeing it has committed
      *
      * @param blockNumber the block number of the nre free block
      */
@@ -125,16 +439,48 @@ public class SuperBlock
         if (blockNumber < 0)
         {
             return;
+        } else if (isJournaled())
+        {
+            BlockIO.discard(blockNumber);
+            journal.free(blockNumber);
+        } else if (bitmapBlocks > 0)
+        {
+            if (setBit(blockNumber, false))
+            {
+                BlockIO.discard(blockNumber);
+            }
         } else
         {
-            byte[] tempData = new byte[Disk.blockSize];
-
-
-            SysLib.int2bytes(freeList, tempData, 0);
-            SysLib.rawwrite(blockNumber, tempData);
-            freeList = blockNumber;
-
+            // Only the link is left of the block, the disk can drop the rest
+            BlockIO.discard(blockNumber);
+            release(blockNumber);
         }
         return;
     }
+
+    /**
+     * Make a block free right away, in the bitmap or at the head of the free list
+     *
+     * @param blockNumber the block
+     */
+    void release(int blockNumber)
+    {
+        if (bitmapBlocks > 0)
+        {
+            setBit(blockNumber, false);
+            return;
+        }
+        // A pooled buffer holds what it last held, the rest of a free block reads as zeros
+        byte[] tempData = BlockPool.take();
+        Arrays.fill(tempData, (byte) 0);
+        SysLib.int2bytes(freeList, tempData, 0);
+        BlockIO.log(blockNumber, tempData);
+        BlockPool.give(tempData);
+        freeList = blockNumber;
+    }
+
+    private boolean isJournaled()
+    {
+        return journal != null && journal.isEnabled();
+    }
 }
\ No newline at end of file
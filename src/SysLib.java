@@ -28,6 +28,20 @@ public class SysLib {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.FORMAT, files, null);
     }
 
+    // blockSize: file system block size, a multiple of Disk.blockSize
+    public static int format(int files, int blockSize)
+    {
+	int args[] = { blockSize };
+	return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.FORMAT, files, args);
+    }
+
+    // extents: map file blocks with extents rather than direct and indirect pointers
+    public static int format(int files, int blockSize, boolean extents)
+    {
+	int args[] = { blockSize, extents ? 1 : 0 };
+	return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.FORMAT, files, args);
+    }
+
     public static int read(int fd, byte[] buffer)
     {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.READ, fd, buffer);
@@ -68,6 +82,11 @@ public class SysLib {
 				 Kernel.BOOT, 0, null );
     }
 
+    public static int boot( String args[] ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.BOOT, 0, args );
+    }
+
     public static int exit( ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.EXIT, 0, null );
@@ -83,6 +102,11 @@ public class SysLib {
 				 0, 0, null );
     }
 
+    public static int disk( DiskRequest request ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_DISK,
+				 0, 0, request );
+    }
+
     public static int cin( StringBuffer s ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.READ, 0, s );
@@ -108,6 +132,88 @@ public class SysLib {
 				 Kernel.RAWWRITE, blkNumber, b );
     }
 
+    // Transfer blks.length blocks at once: b[i] is read from or written
+    // to block blks[i]
+    public static int rawreadv( int blkNumbers[], byte[][] b ) {
+	Object vector[] = { blkNumbers, b };
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV, 0, vector );
+    }
+
+    public static int rawwritev( int blkNumbers[], byte[][] b ) {
+	Object vector[] = { blkNumbers, b };
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEV, 0, vector );
+    }
+
+    // Write block blks[i] from b[i][offsets[i] .. offsets[i] + 512), so a
+    // buffer of many blocks goes out without being cut into copies
+    public static int rawwritev( int blkNumbers[], byte[][] b, 
+				 int offsets[] ) {
+	Object vector[] = { blkNumbers, b, offsets };
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEV, 0, vector );
+    }
+
+    // Queue a block transfer and return its id at once, without waiting
+    // for the disk.  b must be left alone until rawpoll( ) returns 1 or
+    // rawwait( ) returns for that id.
+    public static int rawreadAsync( int blkNumber, byte[] b ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREAD_ASYNC, blkNumber, b );
+    }
+
+    public static int rawwriteAsync( int blkNumber, byte[] b ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITE_ASYNC, blkNumber, b );
+    }
+
+    // Queue a read of blks.length blocks and return its id, or ERROR at
+    // once if the disk queue has no room for them right now
+    public static int rawreadvAsync( int blkNumbers[], byte[][] b ) {
+	Object vector[] = { blkNumbers, b };
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV_ASYNC, 0, vector );
+    }
+
+    // 1 if the transfer is done, 0 while it is still pending
+    public static int rawpoll( int id ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWPOLL, id, null );
+    }
+
+    public static int rawwait( int id ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWAIT, id, null );
+    }
+
+    // Tell the disk block blkNumber holds nothing worth keeping.  Later
+    // reads of it may return zeros or the old data.
+    public static int rawdiscard( int blkNumber ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWDISCARD, blkNumber, null );
+    }
+
+    // Freeze the DISK under a name, or take it back to how it was then.
+    // Only a "diskimage=cow" disk has snapshots, and a rollback needs
+    // every file closed.
+    public static int snapshot( String name ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.SNAPSHOT, 0, name );
+    }
+
+    public static int rollback( String name ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.ROLLBACK, 0, name );
+    }
+
+    // Append the snapshot names to s, oldest first and one per line, and
+    // return how many there are
+    public static int snapshots( StringBuffer s ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.SNAPSHOTS, 0, s );
+    }
+
     public static int sync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.SYNC, 0, null );
@@ -133,6 +239,13 @@ public class SysLib {
 				 Kernel.CSYNC, 0, null );
     }
 
+    // Append the cache counters and its estimated hit ratio at other
+    // sizes to s, one line each
+    public static int cstats( StringBuffer s ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CSTATS, 0, s );
+    }
+
     public static String[] stringToArgs( String s ) {
 	StringTokenizer token = new StringTokenizer( s," " );
 	String[] progArgs = new String[ token.countTokens( ) ];
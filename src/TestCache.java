@@ -0,0 +1,180 @@
+import java.util.Arrays;
+
+// Several threads write and read blocks through the cache at once.  Each
+// worker owns its own blocks and checks it reads back what it wrote, and
+// reads the other workers' blocks to check a page is never seen half
+// written.  Once they are done, csync and flush must leave the disk with
+// every block's last write.  Together the workers use far more blocks than
+// the cache holds, so most accesses evict a page.  The workers go through
+// the kernel's cache first, then through a cache of their own for each
+// replacement policy.  ARC must also keep a hot set through a scan.
+// Overwrites disk blocks 500 to 563 through the cache, then formats the
+// disk.
+//
+//   java Boot latency=none            -->l TestCache
+
+class TestCache extends Thread {
+    private static final int workers = 4;
+    private static final int blocksEach = 16;
+    private static final int rounds = 5;
+    private static final int firstBlock = 500;
+    private static final int cacheBlocks = 10;
+    private static final String policies[] = { "secondchance", "arc", "2q" };
+
+    private static int failures = 0;
+    private static int lastRound[] = new int[workers * blocksEach];
+    private static Cache cache = null; // null goes through the kernel's
+
+    private int worker = -1;
+
+    public TestCache( ) {
+    }
+
+    public TestCache( String args[] ) {
+	worker = Integer.parseInt( args[0] );
+    }
+
+    public void run( ) {
+	if ( worker >= 0 ) {
+	    work( );
+	    SysLib.exit( );
+	    return;
+	}
+	boolean ok = pass( "kernel cache" );
+	for ( int i = 0; i < policies.length; i++ ) {
+	    cache = new Cache( Disk.blockSize, cacheBlocks, 0, policies[i] );
+	    ok &= pass( policies[i] );
+	}
+	ok &= Check.report( "arc keeps hot blocks through a scan",
+			    keepsHot( ) );
+	cache = null;
+
+	SysLib.format( 64 );
+	SysLib.cout( "TestCache " + ( ok ? "passed" : "failed" ) + "\n" );
+	SysLib.exit( );
+    }
+
+    // Start the blocks out zeroed, run the workers and check the disk once
+    // they are done
+    private static boolean pass( String name ) {
+	flush( );
+	for ( int index = 0; index < lastRound.length; index++ ) {
+	    SysLib.rawwrite( firstBlock + index, pattern( index, 0 ) );
+	    lastRound[index] = 0;
+	}
+	failures = 0;
+	for ( int i = 0; i < workers; i++ )
+	    SysLib.exec( SysLib.stringToArgs( "TestCache " + i ) );
+	for ( int i = 0; i < workers; i++ )
+	    SysLib.join( );
+	boolean ok = Check.report( name + ": concurrent reads and writes",
+				   failures == 0 );
+	if ( cache == null )
+	    SysLib.csync( );
+	else
+	    cache.sync( );
+	ok &= Check.report( name + ": disk after sync", onDisk( ) );
+	flush( );
+	ok &= Check.report( name + ": disk after flush", onDisk( ) );
+	return ok;
+    }
+
+    // Read 5 hot blocks twice, then read them again after each scan of 40
+    // other blocks.  Under ARC the scans only go through T1, so the hot
+    // blocks must still be cached after every one.
+    private static boolean keepsHot( ) {
+	cache = new Cache( Disk.blockSize, cacheBlocks, 0, "arc" );
+	byte data[] = new byte[Disk.blockSize];
+	boolean kept = true;
+	for ( int i = 0; i < 2 * 5; i++ )
+	    cache.read( firstBlock + i % 5, data );
+	for ( int round = 0; round < 3; round++ ) {
+	    for ( int scan = 5; scan < 45; scan++ )
+		cache.read( firstBlock + round * 5 + scan, data );
+	    for ( int hot = 0; hot < 5; hot++ ) {
+		kept &= cache.contains( firstBlock + hot );
+		cache.read( firstBlock + hot, data );
+	    }
+	}
+	return kept;
+    }
+
+    // Write each of this worker's blocks round after round, reading it back
+    // and reading a block of the next worker in between
+    private void work( ) {
+	byte data[] = new byte[Disk.blockSize];
+	int other = ( worker + 1 ) % workers;
+	for ( int round = 1; round <= rounds; round++ ) {
+	    for ( int i = 0; i < blocksEach; i++ ) {
+		int index = worker * blocksEach + i;
+		write( firstBlock + index, pattern( index, round ) );
+		lastRound[index] = round;
+		if ( !read( firstBlock + index, data ) ||
+		     !Arrays.equals( data, pattern( index, round ) ) )
+		    fail( "worker " + worker + " lost its write to block " +
+			  ( firstBlock + index ) );
+		index = other * blocksEach + i;
+		if ( !read( firstBlock + index, data ) ||
+		     !whole( data, index ) )
+		    fail( "worker " + worker + " read a torn block " +
+			  ( firstBlock + index ) );
+	    }
+	}
+    }
+
+    private static boolean read( int blockId, byte data[] ) {
+	if ( cache == null )
+	    return SysLib.cread( blockId, data ) == Kernel.OK;
+	return cache.read( blockId, data );
+    }
+
+    private static boolean write( int blockId, byte data[] ) {
+	if ( cache == null )
+	    return SysLib.cwrite( blockId, data ) == Kernel.OK;
+	return cache.write( blockId, data );
+    }
+
+    private static void flush( ) {
+	if ( cache == null )
+	    SysLib.flush( );
+	else
+	    cache.flush( );
+    }
+
+    // Every block holds the last round its owner wrote
+    private static boolean onDisk( ) {
+	byte data[] = new byte[Disk.blockSize];
+	for ( int index = 0; index < lastRound.length; index++ ) {
+	    SysLib.rawread( firstBlock + index, data );
+	    if ( !Arrays.equals( data, pattern( index, lastRound[index] ) ) )
+		return false;
+	}
+	return true;
+    }
+
+    // Block index as written in the given round; round 0 is a block that
+    // was never written
+    private static byte[] pattern( int index, int round ) {
+	byte data[] = new byte[Disk.blockSize];
+	if ( round == 0 )
+	    return data;
+	SysLib.int2bytes( index, data, 0 );
+	SysLib.int2bytes( round, data, 4 );
+	for ( int i = 8; i < data.length; i++ )
+	    data[i] = ( byte )( i * round + index );
+	return data;
+    }
+
+    // The block is exactly one round's write of block index, or still
+    // the zeros it started with
+    private static boolean whole( byte data[], int index ) {
+	int round = SysLib.bytes2int( data, 4 );
+	return round >= 0 && round <= rounds &&
+	    Arrays.equals( data, pattern( index, round ) );
+    }
+
+    private static synchronized void fail( String what ) {
+	if ( failures++ == 0 )
+	    SysLib.cerr( what + "\n" );
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.Arrays;
+
+// Extent-mapped files written at the same time.  The allocator leaves the
+// 8 blocks after the first block of a run for that run to grow into, so
+// two files written a block at a time in turn each keep runs of 8 blocks.
+// They grow past the 139 blocks of a pointer inode and past the 46 extents
+// of one overflow block on a 512-byte block volume, into a second overflow
+// block.  A file that needs its overflow block when only one block is left
+// must fail the write without losing that block.  Formats the disk.
+//
+//   java Boot                         -->l TestExtents
+
+class TestExtents extends Thread {
+    private static final int blockSize = 512;
+    private static final int window = 8;
+    private static final int maxExtents = 4 + ( blockSize - 4 ) / 12;
+    private static final int grown = 420; // blocks, in more than maxExtents runs
+
+    public void run( ) {
+	SysLib.format( 16, blockSize, true );
+	int free = fill( );
+	boolean ok = true;
+
+	int a = SysLib.open( "a", "w" );
+	int b = SysLib.open( "b", "w" );
+	int blocks = 0;
+	while ( blocks < grown
+		&& SysLib.write( a, block( blocks ) ) == blockSize
+		&& SysLib.write( b, block( grown + blocks ) ) == blockSize )
+	    blocks++;
+	SysLib.close( a );
+	SysLib.close( b );
+	ok &= Check.report( "files written in turn grow to " + grown
+			    + " blocks, past " + maxExtents + " extents",
+			    blocks == grown );
+	ok &= Check.report( "both read back",
+			    reads( "a", 0 ) && reads( "b", grown ) );
+	SysLib.delete( "a" );
+	SysLib.delete( "b" );
+	ok &= Check.report( "no block lost", fill( ) == free );
+
+	// four extents in the inode, then a full volume but for one block
+	// away from them
+	SysLib.format( 16, blockSize, true );
+	free = fill( );
+	a = SysLib.open( "a", "w" );
+	b = SysLib.open( "b", "w" );
+	for ( int i = 0; i < 3 * window + 1; i++ ) {
+	    SysLib.write( a, block( i ) );
+	    SysLib.write( b, block( -1 ) );
+	}
+	int one = SysLib.open( "one", "w" );
+	SysLib.write( one, block( -1 ) );
+	SysLib.close( one );
+	int full = SysLib.open( "full", "w" );
+	while ( SysLib.write( full, block( -1 ) ) == blockSize )
+	    ;
+	SysLib.close( full );
+	SysLib.delete( "one" );
+	ok &= Check.report( "no room for the overflow block",
+			    SysLib.write( a, block( 3 * window + 1 ) )
+			    < blockSize );
+	SysLib.close( a );
+	SysLib.close( b );
+	SysLib.delete( "a" );
+	SysLib.delete( "b" );
+	SysLib.delete( "full" );
+	ok &= Check.report( "no block lost to it", fill( ) == free );
+	SysLib.cout( "TestExtents " + ( ok ? "passed" : "failed" ) + "\n" );
+	SysLib.exit( );
+    }
+
+    // The file holds block( first ), block( first + 1 ), ... to its end
+    private static boolean reads( String name, int first ) {
+	int fd = SysLib.open( name, "r" );
+	byte data[] = new byte[blockSize];
+	boolean same = SysLib.fsize( fd ) == grown * blockSize;
+	for ( int i = 0; i < grown && same; i++ )
+	    same = SysLib.read( fd, data ) == blockSize
+		&& Arrays.equals( data, block( first + i ) );
+	SysLib.close( fd );
+	return same;
+    }
+
+    private static byte[] block( int n ) {
+	byte data[] = new byte[blockSize];
+	Arrays.fill( data, ( byte )n );
+	data[0] = ( byte )( n >> 8 );
+	return data;
+    }
+
+    // Blocks a file can take on the volume as it is; the file goes again
+    private static int fill( ) {
+	int fd = SysLib.open( "fill", "w" );
+	int n = 0;
+	while ( SysLib.write( fd, block( n ) ) == blockSize )
+	    n++;
+	SysLib.close( fd );
+	SysLib.delete( "fill" );
+	return n;
+    }
+}
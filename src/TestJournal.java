@@ -0,0 +1,97 @@
+import java.util.Arrays;
+
+// Journal replay after a crash in the middle of a transaction.  Boot on an
+// image that writes through to its file, run "l TestJournal crash", which
+// halts the JVM with a transaction half done, then boot again and run
+// "l TestJournal check":
+//
+//   java Boot diskimage=mapped        -->l TestJournal crash
+//   java Boot diskimage=mapped        -->l TestJournal check
+
+class TestJournal extends Thread {
+    private String phase;
+
+    public TestJournal( ) {
+	phase = "";
+    }
+
+    public TestJournal( String args[] ) {
+	phase = ( args.length > 0 ) ? args[0] : "";
+    }
+
+    public void run( ) {
+	if ( phase.equals( "crash" ) )
+	    crash( );
+	else if ( phase.equals( "check" ) )
+	    check( );
+	else
+	    SysLib.cerr( "usage: TestJournal crash|check\n" );
+	SysLib.exit( );
+    }
+
+    private static byte[] pattern( int seed, int size ) {
+	byte data[] = new byte[size];
+	for ( int i = 0; i < size; i++ )
+	    data[i] = ( byte )( i * seed + 7 );
+	return data;
+    }
+
+    private void crash( ) {
+	SysLib.format( 64 );
+	// checkpointed: its home blocks are on the disk
+	write( "old", pattern( 3, 6000 ) );
+	// still open when the disk is synced and the kernel goes down
+	int held = SysLib.open( "held", "w" );
+	SysLib.write( held, pattern( 7, 3000 ) );
+	SysLib.sync( );
+	// committed, but only in the journal
+	write( "committed", pattern( 5, 20000 ) );
+	// still running: the directory entry, the inode and the blocks of
+	// "torn" have not committed, nor has cutting "old" short
+	int fd = SysLib.open( "torn", "w" );
+	SysLib.write( fd, pattern( 9, 10000 ) );
+	int old = SysLib.open( "old", "w" );
+	SysLib.write( old, pattern( 11, 600 ) );
+	SysLib.cout( "TestJournal: crashing\n" );
+	Runtime.getRuntime( ).halt( 1 );
+    }
+
+    private void check( ) {
+	boolean ok = true;
+	ok &= Check.report( "committed transaction replayed",
+			    matches( "committed", pattern( 5, 20000 ) ) );
+	ok &= Check.report( "checkpointed file untouched",
+			    matches( "old", pattern( 3, 6000 ) ) );
+	int fd = SysLib.open( "torn", "r" );
+	int size = ( fd < 0 ) ? 0 : SysLib.fsize( fd );
+	if ( fd >= 0 )
+	    SysLib.close( fd );
+	ok &= Check.report( "running transaction dropped", size == 0 );
+	ok &= Check.report( "file open at the crash readable",
+			    matches( "held", pattern( 7, 3000 ) ) );
+	write( "held", pattern( 15, 2000 ) );
+	ok &= Check.report( "file open at the crash writable",
+			    matches( "held", pattern( 15, 2000 ) ) );
+	write( "after", pattern( 13, 8000 ) );
+	ok &= Check.report( "file system usable after replay",
+			    matches( "after", pattern( 13, 8000 ) ) );
+	SysLib.cout( "TestJournal " + ( ok ? "passed" : "failed" ) + "\n" );
+    }
+
+    private static void write( String name, byte data[] ) {
+	int fd = SysLib.open( name, "w" );
+	SysLib.write( fd, data );
+	SysLib.close( fd );
+    }
+
+    private static boolean matches( String name, byte data[] ) {
+	int fd = SysLib.open( name, "r" );
+	if ( fd < 0 )
+	    return false;
+	byte read[] = new byte[data.length + 1];
+	int n = SysLib.read( fd, read );
+	SysLib.close( fd );
+	return n == data.length
+	    && Arrays.equals( Arrays.copyOf( read, data.length ), data );
+    }
+}
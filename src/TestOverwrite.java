@@ -0,0 +1,67 @@
+import java.util.Arrays;
+import java.util.Random;
+
+// Random overwrites of a file, some aligned to whole blocks and some not,
+// checked against a byte model of the file.  Aligned writes start and end
+// on 2048-byte boundaries, so they cover whole blocks at every file system
+// block size up to 2048.  The file is read back whole every 50 writes and
+// after it is closed.  Formats the disk.
+//
+//   java Boot                         -->l TestOverwrite
+//   java Boot fscache=on fsblock=2048 -->l TestOverwrite
+
+class TestOverwrite extends Thread {
+    private static final int size = 64 * 1024;
+    private static final int writes = 300;
+    private static final int align = 2048;
+
+    public void run( ) {
+	SysLib.format( 16 );
+	Random random = new Random( 430 );
+	byte model[] = new byte[size];
+	random.nextBytes( model );
+	int fd = SysLib.open( "overwrite", "w" );
+	SysLib.write( fd, model );
+	SysLib.close( fd );
+
+	boolean ok = true;
+	boolean matched = true;
+	fd = SysLib.open( "overwrite", "w+" );
+	for ( int i = 1; i <= writes; i++ ) {
+	    int offset, length;
+	    if ( random.nextBoolean( ) ) {
+		offset = random.nextInt( size / align ) * align;
+		length = ( 1 + random.nextInt( 4 ) ) * align;
+	    } else {
+		offset = random.nextInt( size );
+		length = 1 + random.nextInt( 5000 );
+	    }
+	    length = Math.min( length, size - offset );
+	    byte data[] = new byte[length];
+	    random.nextBytes( data );
+	    SysLib.seek( fd, offset, 0 );
+	    if ( SysLib.write( fd, data ) != length )
+		matched = false;
+	    System.arraycopy( data, 0, model, offset, length );
+	    if ( i % 50 == 0 )
+		matched &= reads( fd, model );
+	}
+	ok &= Check.report( writes + " aligned and unaligned writes", matched );
+	SysLib.close( fd );
+
+	fd = SysLib.open( "overwrite", "r" );
+	ok &= Check.report( "file as written after close", reads( fd, model ) );
+	SysLib.close( fd );
+	SysLib.delete( "overwrite" );
+	SysLib.cout( "TestOverwrite " + ( ok ? "passed" : "failed" ) + "\n" );
+	SysLib.exit( );
+    }
+
+    // The whole file holds what the model does
+    private static boolean reads( int fd, byte model[] ) {
+	byte data[] = new byte[model.length];
+	SysLib.seek( fd, 0, 0 );
+	return SysLib.read( fd, data ) == model.length
+	    && Arrays.equals( data, model );
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.Arrays;
+
+// Writes to blocks a sequential reader has already prefetched.  Reads must
+// see what was written, not the copy read ahead of it, whether the write
+// comes after the reader closed the file or through the reader's own
+// descriptor.  Blocks are read ahead into the block cache, so nothing is
+// prefetched without it.  Formats the disk.
+//
+//   java Boot fscache=on              -->l TestReadAhead
+//   java Boot fscache=on fsblock=2048 -->l TestReadAhead
+
+class TestReadAhead extends Thread {
+    private static final int size = 32 * 1024;
+
+    public void run( ) {
+	SysLib.format( 16 );
+	boolean ok = true;
+	byte model[] = pattern( 1, size );
+	int fd = SysLib.open( "ahead", "w" );
+	SysLib.write( fd, model );
+	SysLib.close( fd );
+
+	// a writer changes what a reader that has closed the file prefetched
+	int reader = SysLib.open( "ahead", "r" );
+	ok &= Check.report( "sequential reads",
+			    reads( reader, model, 0, 1024 )
+			    && reads( reader, model, 1024, 1024 ) );
+	SysLib.sleep( 100 ); // let the prefetched blocks come in
+	SysLib.close( reader );
+	int writer = SysLib.open( "ahead", "w+" );
+	overwrite( writer, model, 2048, pattern( 2, 6000 ) );
+	SysLib.close( writer );
+	reader = SysLib.open( "ahead", "r" );
+	ok &= Check.report( "next reader sees the write",
+			    reads( reader, model, 0, 1024 )
+			    && reads( reader, model, 1024, size - 1024 ) );
+	SysLib.close( reader );
+
+	// the reader itself writes ahead of where it reads
+	fd = SysLib.open( "ahead", "w+" );
+	ok &= Check.report( "sequential reads again",
+			    reads( fd, model, 0, 4096 )
+			    && reads( fd, model, 4096, 4096 ) );
+	SysLib.sleep( 100 );
+	overwrite( fd, model, 12288, pattern( 3, 3000 ) );
+	SysLib.seek( fd, 8192, 0 );
+	ok &= Check.report( "reader sees its own write",
+			    reads( fd, model, 8192, size - 8192 ) );
+	SysLib.close( fd );
+
+	fd = SysLib.open( "ahead", "r" );
+	ok &= Check.report( "file as written after close",
+			    reads( fd, model, 0, size ) );
+	SysLib.close( fd );
+	SysLib.delete( "ahead" );
+	SysLib.cout( "TestReadAhead " + ( ok ? "passed" : "failed" ) + "\n" );
+	SysLib.exit( );
+    }
+
+    private static byte[] pattern( int seed, int n ) {
+	byte data[] = new byte[n];
+	for ( int i = 0; i < n; i++ )
+	    data[i] = ( byte )( i * seed + seed );
+	return data;
+    }
+
+    // read length bytes at the descriptor's position, expected at offset
+    private static boolean reads( int fd, byte model[], int offset,
+				  int length ) {
+	byte data[] = new byte[length];
+	return SysLib.read( fd, data ) == length
+	    && Arrays.equals( data, Arrays.copyOfRange( model, offset,
+							offset + length ) );
+    }
+
+    private static void overwrite( int fd, byte model[], int offset,
+				   byte data[] ) {
+	SysLib.seek( fd, offset, 0 );
+	SysLib.write( fd, data );
+	System.arraycopy( data, 0, model, offset, data.length );
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.Random;
+import java.util.Vector;
+
+// 5 hot blocks are read twice after each scan of 40 blocks never read
+// before, through the kernel's cache, and the cache's report is printed.
+// A hot block comes back 45 blocks later, so an LRU cache of fewer than 45
+// pages only hits the second read of each.  The same accesses also go
+// through a MissRatioCurve of their own, printed next to exact LRU; a stack
+// of 80 blocks is a single shard, so the two must agree.  A curve of 1024
+// blocks is split into shards that sample the blocks, it is checked against
+// exact LRU on a random trace of 200k accesses.  Only reads the disk,
+// blocks 100 to 904.
+//
+//   java Boot latency=ssd                     -->l TestScanMix
+//   java Boot latency=ssd cachepolicy=arc     -->l TestScanMix
+
+class TestScanMix extends Thread {
+    private static final int firstBlock = 100;
+    private static final int hotBlocks = 5;
+    private static final int scanBlocks = 40;
+    private static final int rounds = 20;
+    private static final int depth = 80;
+    private static final double tolerance = 0.01;
+
+    public void run( ) {
+	MissRatioCurve curve = new MissRatioCurve( depth );
+	Lru lru = new Lru( depth );
+	byte data[] = new byte[Disk.blockSize];
+	long start = System.currentTimeMillis( );
+	int reads = 0;
+	for ( int round = 0; round < rounds; round++ ) {
+	    for ( int i = 0; i < scanBlocks + 2 * hotBlocks; i++ ) {
+		int blockId = firstBlock + ( ( i < scanBlocks ) ?
+		    hotBlocks + round * scanBlocks + i : i % hotBlocks );
+		SysLib.cread( blockId, data );
+		curve.access( blockId );
+		lru.access( blockId );
+		reads++;
+	    }
+	}
+	long elapsed = System.currentTimeMillis( ) - start;
+	StringBuffer stats = new StringBuffer( );
+	SysLib.cstats( stats );
+	SysLib.cout( stats + "TestScanMix: " + reads + " reads in " +
+		     elapsed + "ms, LRU hit ratio " + percent( curve, 40 ) +
+		     " at 40 pages and " + percent( curve, 50 ) +
+		     " at 50, exactly " + percent( lru.hitRatio( 40 ) ) +
+		     " and " + percent( lru.hitRatio( 50 ) ) + "\n" );
+
+	boolean ok = Check.report( "shallow curve is exact LRU",
+				   agrees( curve, lru, 1, 0.0 ) );
+	ok &= Check.report( "sharded curve matches exact LRU on a random trace",
+			    randomTrace( ) );
+	SysLib.cout( "TestScanMix " + ( ok ? "passed" : "failed" ) + "\n" );
+	SysLib.exit( );
+    }
+
+    private static String percent( MissRatioCurve curve, int pages ) {
+	return percent( curve.hitRatio( pages ) );
+    }
+
+    private static String percent( double ratio ) {
+	return Math.round( ratio * 1000 ) / 10.0 + "%";
+    }
+
+    // Half the accesses go to 200 blocks and half to 3000, so the hit
+    // ratio keeps climbing over every size the curve covers
+    private static boolean randomTrace( ) {
+	MissRatioCurve curve = new MissRatioCurve( 1024 );
+	Lru lru = new Lru( 1024 );
+	Random random = new Random( 430 );
+	for ( int i = 0; i < 200000; i++ ) {
+	    int blockId = random.nextBoolean( ) ? random.nextInt( 200 ) :
+		200 + random.nextInt( 3000 );
+	    curve.access( blockId );
+	    lru.access( blockId );
+	}
+	return agrees( curve, lru, 32, tolerance );
+    }
+
+    // The curve's hit ratio is within tolerance of exact LRU at every step
+    // of pages
+    static boolean agrees( MissRatioCurve curve, Lru lru, int step,
+			   double tolerance ) {
+	for ( int pages = step; pages <= curve.depth( ); pages += step ) {
+	    double error = Math.abs( curve.hitRatio( pages ) -
+				     lru.hitRatio( pages ) );
+	    if ( error > tolerance ) {
+		SysLib.cerr( "at " + pages + " pages the curve says " +
+			     curve.hitRatio( pages ) + ", LRU hits " +
+			     lru.hitRatio( pages ) + "\n" );
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    // An exact LRU stack, walked on every access; blocks deeper than depth
+    // can only miss, so they are dropped
+    static class Lru {
+	private Vector<Integer> stack = new Vector<Integer>( ); // MRU first
+	private long found[];
+	private long accesses = 0;
+
+	Lru( int depth ) {
+	    found = new long[depth];
+	}
+
+	void access( int blockId ) {
+	    int d = stack.indexOf( blockId );
+	    if ( d >= 0 ) {
+		found[d]++;
+		stack.removeElementAt( d );
+	    } else if ( stack.size( ) == found.length )
+		stack.removeElementAt( found.length - 1 );
+	    stack.insertElementAt( blockId, 0 );
+	    accesses++;
+	}
+
+	double hitRatio( int pages ) {
+	    long hits = 0;
+	    for ( int d = 0; d < pages; d++ )
+		hits += found[d];
+	    return accesses == 0 ? 0.0 : ( double )hits / accesses;
+	}
+    }
+}
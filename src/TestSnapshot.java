@@ -0,0 +1,115 @@
+import java.util.Arrays;
+
+// DISK snapshots and rollback on a copy-on-write image.  "TestSnapshot"
+// formats the disk, takes snapshots between writes and rolls back to each
+// of them; it ends rolled back to the first one.  Booting again and running
+// "l TestSnapshot check" finds the disk as it was left.
+//
+//   java Boot diskimage=cow           -->l TestSnapshot
+//   java Boot diskimage=cow           -->l TestSnapshot check
+
+class TestSnapshot extends Thread {
+    private String phase;
+
+    public TestSnapshot( ) {
+	phase = "";
+    }
+
+    public TestSnapshot( String args[] ) {
+	phase = ( args.length > 0 ) ? args[0] : "";
+    }
+
+    public void run( ) {
+	boolean ok = phase.equals( "check" ) ? check( ) : snapshots( );
+	SysLib.cout( "TestSnapshot " + ( ok ? "passed" : "failed" ) + "\n" );
+	SysLib.exit( );
+    }
+
+    private boolean snapshots( ) {
+	SysLib.format( 16 );
+	if ( SysLib.snapshot( "empty" ) < 0 ) {
+	    SysLib.cerr( "TestSnapshot: boot with diskimage=cow\n" );
+	    return false;
+	}
+	boolean ok = true;
+	write( "a", pattern( 1, 5000 ) );
+	ok &= Check.report( "snapshot", SysLib.snapshot( "first" ) == 0 );
+	ok &= Check.report( "name in use refused",
+			    SysLib.snapshot( "first" ) < 0 );
+	write( "a", pattern( 2, 9000 ) );
+	write( "b", pattern( 3, 700 ) );
+	ok &= Check.report( "second snapshot",
+			    SysLib.snapshot( "second" ) == 0 );
+	SysLib.delete( "b" );
+	write( "c", pattern( 4, 100 ) );
+	ok &= Check.report( "listed oldest first",
+			    listed( ).equals( "empty\nfirst\nsecond\n" ) );
+
+	int fd = SysLib.open( "a", "r" );
+	ok &= Check.report( "rollback refused while a file is open",
+			    SysLib.rollback( "second" ) < 0 );
+	SysLib.close( fd );
+	ok &= Check.report( "rollback", SysLib.rollback( "second" ) == 0 );
+	ok &= Check.report( "files as at the snapshot",
+			    matches( "a", pattern( 2, 9000 ) )
+			    && matches( "b", pattern( 3, 700 ) )
+			    && SysLib.open( "c", "r" ) < 0 );
+	ok &= Check.report( "later snapshots kept", listed( ).equals(
+			  "empty\nfirst\nsecond\n" ) );
+
+	ok &= Check.report( "rollback further",
+			    SysLib.rollback( "first" ) == 0 );
+	ok &= Check.report( "files as at the first snapshot",
+			    matches( "a", pattern( 1, 5000 ) )
+			    && SysLib.open( "b", "r" ) < 0 );
+	ok &= Check.report( "snapshots after it dropped",
+			    listed( ).equals( "empty\nfirst\n" ) );
+	ok &= Check.report( "unknown snapshot refused",
+			    SysLib.rollback( "second" ) < 0 );
+	SysLib.sync( );
+	return ok;
+    }
+
+    private boolean check( ) {
+	boolean ok = true;
+	ok &= Check.report( "snapshots kept over a reboot",
+			    listed( ).equals( "empty\nfirst\n" ) );
+	ok &= Check.report( "files kept over a reboot",
+			    matches( "a", pattern( 1, 5000 ) )
+			    && SysLib.open( "b", "r" ) < 0 );
+	ok &= Check.report( "rollback after a reboot",
+			    SysLib.rollback( "empty" ) == 0
+			    && SysLib.open( "a", "r" ) < 0 );
+	return ok;
+    }
+
+    private static String listed( ) {
+	StringBuffer names = new StringBuffer( );
+	SysLib.snapshots( names );
+	return names.toString( );
+    }
+
+    private static byte[] pattern( int seed, int size ) {
+	byte data[] = new byte[size];
+	for ( int i = 0; i < size; i++ )
+	    data[i] = ( byte )( i * seed + 3 );
+	return data;
+    }
+
+    private static void write( String name, byte data[] ) {
+	int fd = SysLib.open( name, "w" );
+	SysLib.write( fd, data );
+	SysLib.close( fd );
+    }
+
+    private static boolean matches( String name, byte data[] ) {
+	int fd = SysLib.open( name, "r" );
+	if ( fd < 0 )
+	    return false;
+	byte read[] = new byte[data.length + 1];
+	int n = SysLib.read( fd, read );
+	SysLib.close( fd );
+	return n == data.length
+	    && Arrays.equals( Arrays.copyOf( read, data.length ), data );
+    }
+}
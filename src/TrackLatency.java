@@ -0,0 +1,25 @@
+/**
+ * The classic threadOS drive: a fixed time per transfer plus a delay for
+ * every track the head crosses on its way to the target block.  Most of
+ * the transfer time is the rotation before the first block comes under the
+ * head, so a run of consecutive blocks only pays it once.
+ */
+public class TrackLatency implements LatencyModel {
+    private static final long msec = 1000000L;
+    private int trackSize;              // blocks per track
+    private final long rotationTime = 15 * msec; // once per transfer
+    private final long blockTime = 5 * msec;     // for every block moved
+    private final long delayPerTrack = 1 * msec;
+
+    public TrackLatency( int trackSize ) {
+	this.trackSize = trackSize;
+    }
+
+    public long seekNanos( int fromBlockId, int toBlockId ) {
+	return delayPerTrack * Math.abs( toBlockId/trackSize - fromBlockId/trackSize );
+    }
+
+    public long transferNanos( int blocks ) {
+	return ( blocks > 0 ) ? rotationTime + blockTime * blocks : 0;
+    }
+}
@@ -0,0 +1,66 @@
+import java.util.*;
+
+/**
+ * The full 2Q algorithm (Johnson and Shasha).  A block loaded for the
+ * first time goes into A1in, a FIFO of about a quarter of the pages, and
+ * hits there do not move it.  When it leaves A1in the block is remembered,
+ * without its data, in the ghost FIFO A1out, and only a block missed again
+ * while in A1out is loaded into Am, the LRU list of the hot pages.  A scan
+ * therefore runs through A1in and never displaces Am.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+    private int kin;                       // pages A1in is allowed to keep
+    private int kout;                      // blocks A1out remembers
+    private LinkedHashSet<Integer> free, a1in, am;  // pages, oldest first
+    private LinkedHashSet<Integer> a1out;           // blockIds, oldest first
+
+    public TwoQueuePolicy( int frames ) {
+	this( 0, frames );
+    }
+
+    // Replace pages firstPage .. firstPage + frames - 1
+    public TwoQueuePolicy( int firstPage, int frames ) {
+	kin = Math.max( 1, frames / 4 );
+	kout = Math.max( 1, frames / 2 );
+	free = new LinkedHashSet<Integer>( );
+	a1in = new LinkedHashSet<Integer>( );
+	am = new LinkedHashSet<Integer>( );
+	a1out = new LinkedHashSet<Integer>( );
+	for ( int i = firstPage; i < firstPage + frames; i++ )
+	    free.add( i );
+    }
+
+    public synchronized void touch( int entry ) {
+	if ( am.remove( entry ) )
+	    am.add( entry ); // to the MRU end of Am
+    }
+
+    public synchronized void insert( int entry, int blockId ) {
+	free.remove( entry );
+	if ( a1out.remove( blockId ) )
+	    am.add( entry );
+	else
+	    a1in.add( entry );
+    }
+
+    public synchronized void remove( int entry, int blockId ) {
+	if ( a1in.remove( entry ) ) {
+	    a1out.add( blockId );
+	    if ( a1out.size( ) > kout )
+		a1out.remove( a1out.iterator( ).next( ) );
+	} else
+	    am.remove( entry );
+	free.add( entry );
+    }
+
+    public synchronized int victim( Cache cache, int blockId ) {
+	int entry = cache.claimFirst( free.iterator( ) );
+	if ( entry != -1 )
+	    return entry;
+	boolean fromA1in = a1in.size( ) > kin || am.isEmpty( );
+	entry = cache.claimFirst( ( fromA1in ? a1in : am ).iterator( ) );
+	if ( entry == -1 )
+	    entry = cache.claimFirst( ( fromA1in ? am : a1in ).iterator( ) );
+	return entry;
+    }
+}